@@ -12,10 +12,18 @@
 #   public *;
 #}
 
-# Uncomment this to preserve the line number information for
-# debugging stack traces.
-#-keepattributes SourceFile,LineNumberTable
+# Preserve the line number information for debugging stack traces.
+-keepattributes SourceFile,LineNumberTable
 
-# If you keep the line number information, uncomment this to
-# hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+# Hide the original source file name.
+-renamesourcefileattribute SourceFile
+
+# Firebase Database maps model classes through reflection.
+# R8 full mode does not keep default constructors implicitly,
+# so the constructor, fields and getters of the models are kept.
+-keepattributes Signature,*Annotation*
+-keepclassmembers class com.stamatiou.violation.Violation {
+    <init>();
+    <fields>;
+    public <methods>;
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.stamatiou.violation;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Release smoke test, verifying that Firebase maps violations through reflection
+ * after R8 full mode shrinking. Run against the minified release build, with the
+ * local Firebase Database emulator running: benchmark/release_smoke.sh
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReleaseSmokeTest {
+
+    private final static String EMULATOR_URL = "http://10.0.2.2:9000?ns=speedometer-emulator";
+    private final static long TIMEOUT = 10; // Seconds.
+    private final static long TIME = 1593598500000L; // 2020-07-01 10:15 UTC.
+
+    private DatabaseReference root;
+
+    @Before
+    public void clearDatabase() throws Exception {
+        root = FirebaseDatabase.getInstance(EMULATOR_URL).getReference();
+        Tasks.await(root.setValue(null), TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void violationRoundTripsThroughFirebaseMapping() throws Exception {
+        Violation violation = new Violation.Builder()
+                                           .withLatitude(37.9838)
+                                           .withLongitude(23.7275)
+                                           .withSpeed(95.5f)
+                                           .withTimestamp(new Date(TIME))
+                                           .build();
+        String key = ViolationIndex.write(root, "user1", violation);
+        assertViolation(read(root.child(ViolationIndex.VIOLATIONS_PATH).child("user1").child(key)));
+        assertViolation(read(root.child(ViolationIndex.BY_TIME_PATH).child(ViolationIndex.timeBucket(TIME)).child(key)));
+    }
+
+    private static void assertViolation(DataSnapshot dataSnapshot) {
+        Violation violation = dataSnapshot.getValue(Violation.class);
+        assertNotNull(violation);
+        assertEquals(37.9838, violation.getLatitude(), 0.00001);
+        assertEquals(23.7275, violation.getLongitude(), 0.00001);
+        assertEquals(95.5f, violation.getSpeed(), 0.01f);
+        assertEquals(TIME, violation.getTimestamp().getTime());
+    }
+
+    private static DataSnapshot read(Query query) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<DataSnapshot> snapshot = new AtomicReference<>();
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                snapshot.set(dataSnapshot);
+                latch.countDown();
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+        assertNotNull(snapshot.get());
+        return snapshot.get();
+    }
+}
@@ -0,0 +1,224 @@
+package com.stamatiou.violation;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Violation Index migration and queries, verified against the local Firebase Database emulator.
+ * Emulator must be running: firebase emulators:start --only database --config firebase.emulator.json
+ */
+@RunWith(AndroidJUnit4.class)
+public class ViolationIndexEmulatorTest {
+
+    private final static String EMULATOR_URL = "http://10.0.2.2:9000?ns=speedometer-emulator";
+    private final static long TIMEOUT = 10; // Seconds.
+    private final static long ATHENS_TIME = 1593598500000L; // 2020-07-01 10:15 UTC.
+    private final static long THESSALONIKI_TIME = 1593606600000L; // 2020-07-01 12:30 UTC.
+
+    private DatabaseReference root;
+    private String athensKey;
+    private String thessalonikiKey;
+
+    @Before
+    public void seedLegacyViolations() throws Exception {
+        root = FirebaseDatabase.getInstance(EMULATOR_URL).getReference();
+        Tasks.await(root.setValue(null), TIMEOUT, TimeUnit.SECONDS);
+        athensKey = ViolationIndex.pushKey(ATHENS_TIME) + "AAAAAAAAAAAA";
+        thessalonikiKey = ViolationIndex.pushKey(THESSALONIKI_TIME) + "AAAAAAAAAAAA";
+        Map<String, Object> legacy = new HashMap<>();
+        legacy.put("violations/user1/" + athensKey, violation(37.9838, 23.7275, 95f, ATHENS_TIME));
+        legacy.put("violations/user2/" + thessalonikiKey, violation(40.6401, 22.9444, 130f, THESSALONIKI_TIME));
+        Tasks.await(root.updateChildren(legacy), TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void migrationBackfillsIndexNodes() throws Exception {
+        assertEquals(2, migrate());
+        DataSnapshot timeEntry = read(root.child(ViolationIndex.BY_TIME_PATH).child("2020070110").child(athensKey));
+        assertEquals("user1", timeEntry.child(ViolationIndex.USER_CHILD).getValue(String.class));
+        assertEquals(95f, timeEntry.getValue(Violation.class).getSpeed(), 0.01f);
+        String cell = ViolationIndex.geohash(40.6401, 22.9444, ViolationIndex.CELL_PRECISION);
+        DataSnapshot cellEntry = read(root.child(ViolationIndex.BY_CELL_PATH).child(cell).child(thessalonikiKey));
+        assertEquals("user2", cellEntry.child(ViolationIndex.USER_CHILD).getValue(String.class));
+        String tile = HotspotTileCache.tileKey(timeEntry.getValue(Violation.class));
+        assertEquals(Long.valueOf(1), read(root.child(HotspotTileCache.HOTSPOTS_PATH).child(tile)).getValue(Long.class));
+        assertEquals(Long.valueOf(ViolationIndexMigrator.INDEX_VERSION), read(root.child(ViolationIndexMigrator.INDEX_VERSION_PATH)).getValue(Long.class));
+        assertTrue(read(root.child(ViolationIndex.VIOLATIONS_PATH).child("user1").child(athensKey)).hasChild(ViolationIndex.INDEXED_CHILD));
+    }
+
+    @Test
+    public void migrationOnlyIncreasesCountersOfUnindexedViolations() throws Exception {
+        Violation written = violation(37.9838, 23.7275, 110f, ATHENS_TIME);
+        ViolationIndex.write(root, "user3", written);
+        assertEquals(2, migrate());
+        String tile = HotspotTileCache.tileKey(written);
+        assertEquals(Long.valueOf(2), read(root.child(HotspotTileCache.HOTSPOTS_PATH).child(tile)).getValue(Long.class));
+        Tasks.await(root.child(ViolationIndexMigrator.INDEX_VERSION_PATH).setValue(null), TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(0, migrate());
+        assertEquals(Long.valueOf(2), read(root.child(HotspotTileCache.HOTSPOTS_PATH).child(tile)).getValue(Long.class));
+    }
+
+    @Test
+    public void migrationIsSkippedWhenUpToDate() throws Exception {
+        assertEquals(2, migrate());
+        assertEquals(0, migrate());
+    }
+
+    @Test
+    public void migrationIsRejectedWhileClaimed() throws Exception {
+        Tasks.await(root.child(ViolationIndexMigrator.LOCK_PATH).setValue(System.currentTimeMillis()), TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(-1, migrate());
+        assertFalse(read(root.child(ViolationIndex.VIOLATIONS_PATH).child("user1").child(athensKey)).hasChild(ViolationIndex.INDEXED_CHILD));
+        Tasks.await(root.child(ViolationIndexMigrator.LOCK_PATH).setValue(System.currentTimeMillis() - ViolationIndexMigrator.LOCK_TIMEOUT), TIMEOUT, TimeUnit.SECONDS);
+        assertEquals(2, migrate());
+        assertFalse(read(root.child(ViolationIndexMigrator.LOCK_PATH)).exists());
+    }
+
+    @Test
+    public void timeRangeReadsOnlyCoveredBuckets() throws Exception {
+        migrate();
+        DataSnapshot morning = read(ViolationIndex.timeRange(root, ATHENS_TIME - 3600000L, ATHENS_TIME));
+        assertEquals(1, count(morning));
+        assertTrue(morning.child("2020070110").hasChild(athensKey));
+        assertEquals(2, count(read(ViolationIndex.timeRange(root, ATHENS_TIME, THESSALONIKI_TIME))));
+    }
+
+    @Test
+    public void speedRangeReadsOnlyFasterViolations() throws Exception {
+        migrate();
+        DataSnapshot fast = read(ViolationIndex.speedRange(root, 100f));
+        assertEquals(1, count(fast));
+        assertTrue(fast.hasChild(thessalonikiKey));
+        assertEquals(2, count(read(ViolationIndex.speedRange(root, 90f))));
+    }
+
+    @Test
+    public void regionReadsOnlyCoveringCells() throws Exception {
+        migrate();
+        Map<String, Query> queries = ViolationIndex.region(root, 37.9, 23.6, 38.1, 23.8);
+        assertNotNull(queries);
+        assertTrue(queries.containsKey(ViolationIndex.geohash(37.9838, 23.7275, ViolationIndex.CELL_PRECISION)));
+        int violations = 0;
+        for (Query query : queries.values()) {
+            DataSnapshot cell = read(query);
+            assertFalse(cell.hasChild(thessalonikiKey));
+            violations += cell.getChildrenCount();
+        }
+        assertEquals(1, violations);
+        assertNull(ViolationIndex.region(root, 30, 10, 45, 30));
+    }
+
+    @Test
+    public void writeFansOutAtomically() throws Exception {
+        long now = System.currentTimeMillis();
+        String key = ViolationIndex.write(root, "user3", violation(37.9838, 23.7275, 110f, now));
+        assertTrue(read(root.child(ViolationIndex.VIOLATIONS_PATH).child("user3")).hasChild(key));
+        assertTrue(read(root.child(ViolationIndex.BY_TIME_PATH).child(ViolationIndex.timeBucket(now))).hasChild(key));
+        String cell = ViolationIndex.geohash(37.9838, 23.7275, ViolationIndex.CELL_PRECISION);
+        assertTrue(read(root.child(ViolationIndex.BY_CELL_PATH).child(cell)).hasChild(key));
+        Long received = read(root.child(ViolationIndex.BY_RECEIVED_PATH).child(key).child(ViolationIndex.RECEIVED_CHILD)).getValue(Long.class);
+        assertNotNull(received);
+        assertTrue(received >= now - 60000L);
+        ViolationIndex.write(root, "user3", violation(37.9838, 23.7275, 120f, now));
+        String tile = HotspotTileCache.tileKey(violation(37.9838, 23.7275, 110f, now));
+        assertEquals(Long.valueOf(2), read(root.child(HotspotTileCache.HOTSPOTS_PATH).child(tile)).getValue(Long.class));
+    }
+
+    @Test
+    public void receivedFeedIncludesLateWrites() throws Exception {
+        long since = System.currentTimeMillis() - 60000L;
+        String key = ViolationIndex.write(root, "user3", violation(37.9838, 23.7275, 110f, ATHENS_TIME));
+        DataSnapshot feed = read(root.child(ViolationIndex.BY_RECEIVED_PATH).orderByChild(ViolationIndex.RECEIVED_CHILD).startAt(since));
+        assertTrue(feed.hasChild(key));
+        assertEquals("user3", feed.child(key).child(ViolationIndex.USER_CHILD).getValue(String.class));
+    }
+
+    @Test
+    public void removeLeavesTombstoneInReceivedFeed() throws Exception {
+        long now = System.currentTimeMillis();
+        Violation written = violation(37.9838, 23.7275, 110f, now);
+        String key = ViolationIndex.write(root, "user3", written);
+        Tasks.await(root.updateChildren(ViolationIndex.removal("user3", key, written)), TIMEOUT, TimeUnit.SECONDS);
+        assertFalse(read(root.child(ViolationIndex.VIOLATIONS_PATH).child("user3")).hasChild(key));
+        assertFalse(read(root.child(ViolationIndex.BY_TIME_PATH).child(ViolationIndex.timeBucket(now))).hasChild(key));
+        DataSnapshot tombstone = read(root.child(ViolationIndex.BY_RECEIVED_PATH).child(key));
+        assertTrue(tombstone.hasChild(ViolationIndex.DELETED_CHILD));
+        assertNotNull(tombstone.child(ViolationIndex.RECEIVED_CHILD).getValue(Long.class));
+        String tile = HotspotTileCache.tileKey(written);
+        assertEquals(Long.valueOf(0), read(root.child(HotspotTileCache.HOTSPOTS_PATH).child(tile)).getValue(Long.class));
+    }
+
+    private static Violation violation(double latitude, double longitude, float speed, long time) {
+        return new Violation.Builder()
+                            .withLatitude(latitude)
+                            .withLongitude(longitude)
+                            .withSpeed(speed)
+                            .withTimestamp(new Date(time))
+                            .build();
+    }
+
+    private int migrate() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger migrated = new AtomicInteger(-1);
+        new ViolationIndexMigrator(root, new ViolationIndexMigrator.Callback() {
+            @Override
+            public void onMigrationCompleted(int violations) {
+                migrated.set(violations);
+                latch.countDown();
+            }
+
+            @Override
+            public void onMigrationFailed(Exception exception) {
+                latch.countDown();
+            }
+        }).migrate();
+        assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+        return migrated.get();
+    }
+
+    private static DataSnapshot read(Query query) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<DataSnapshot> snapshot = new AtomicReference<>();
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                snapshot.set(dataSnapshot);
+                latch.countDown();
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS));
+        assertNotNull(snapshot.get());
+        return snapshot.get();
+    }
+
+    private static int count(DataSnapshot dataSnapshot) {
+        return (int) dataSnapshot.getChildrenCount();
+    }
+}
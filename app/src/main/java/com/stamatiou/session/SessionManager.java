@@ -0,0 +1,177 @@
+// -------------------------------------------------------------
+//
+// This is the Session Manager used by the application, to keep the
+// verified session of the signed in user cached locally, so returning
+// users skip the sign in and email verification round trips.
+// Cached session contains the user and the time it was last verified,
+// in application private preferences, excluded from backups.
+// Firebase Auth persists its own credentials, so a cached session is
+// used without network access, while it is revalidated in the background:
+//      1. User is reloaded, so disabled, deleted or no longer verified
+//      users invalidate the session.
+//      2. ID token is refreshed, and revalidation is repeated periodically.
+// Network failures keep the cached session, until it exceeds its
+// maximum age and user has to sign in again.
+// Verified users already signed in when sessions were introduced get
+// their session seeded on first launch, instead of signing in again.
+// An invalidated session also stops speed monitoring, whether or not an
+// Activity is present to handle the invalidation.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.session;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseAuthInvalidUserException;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.auth.GetTokenResult;
+import com.stamatiou.speedometer.SpeedMonitoringService;
+
+public class SessionManager {
+
+    public interface Listener {
+
+        // Invoked when the cached session is no longer valid, and user has been signed out.
+        void onSessionInvalidated();
+    }
+
+    public final static String PREFERENCES_NAME = "session";
+    public final static long MAX_SESSION_AGE = 604800000L; // Cached session validity without revalidation, in milliseconds.
+    private final static long REVALIDATION_INTERVAL = 2700000L; // Revalidation interval, within ID token lifetime, in milliseconds.
+    private final static long RETRY_INTERVAL = 300000L; // Revalidation retry interval on network failures, in milliseconds.
+    private final static String USER_KEY = "user";
+    private final static String VERIFIED_AT_KEY = "verified_at";
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Listener listener;
+    private boolean revalidating;
+    private final Runnable revalidation = new Runnable() {
+        @Override
+        public void run() {
+            revalidate();
+        }
+    };
+
+    public SessionManager(Context context) {
+        this.context = context.getApplicationContext();
+        this.preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Checks if a verified session of the current user is cached, without network access.
+    // Verified users signed in before sessions were cached have no session entry,
+    // so their session is seeded from the persisted Firebase user, and it is
+    // revalidated in the background like any cached session.
+    public Boolean hasVerifiedSession() {
+        FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            return false;
+        }
+        if (!preferences.contains(USER_KEY) && user.isEmailVerified()) {
+            Log.i("message", "Seeding session of signed in user.");
+            store(user);
+            return true;
+        }
+        return user.getUid().equals(preferences.getString(USER_KEY, null))
+               && System.currentTimeMillis() - preferences.getLong(VERIFIED_AT_KEY, 0) < MAX_SESSION_AGE;
+    }
+
+    // Caches the session of a verified user and schedules its revalidation.
+    public void store(FirebaseUser user) {
+        preferences.edit()
+                   .putString(USER_KEY, user.getUid())
+                   .putLong(VERIFIED_AT_KEY, System.currentTimeMillis())
+                   .apply();
+        schedule(REVALIDATION_INTERVAL);
+    }
+
+    // Revalidates the cached session in the background.
+    public void revalidate() {
+        handler.removeCallbacks(revalidation);
+        final FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+        if (user == null) {
+            invalidate();
+            return;
+        }
+        if (revalidating) {
+            return;
+        }
+        revalidating = true;
+        user.reload().addOnCompleteListener(new OnCompleteListener<Void>() {
+            @Override
+            public void onComplete(@NonNull Task<Void> task) {
+                if (!task.isSuccessful()) {
+                    failed(task.getException());
+                } else if (!user.isEmailVerified()) {
+                    revalidating = false;
+                    Log.i("message", "Session user is no longer verified.");
+                    invalidate();
+                } else {
+                    user.getIdToken(true).addOnCompleteListener(new OnCompleteListener<GetTokenResult>() {
+                        @Override
+                        public void onComplete(@NonNull Task<GetTokenResult> task) {
+                            if (task.isSuccessful()) {
+                                revalidating = false;
+                                store(user);
+                                Log.i("message", "Session revalidated successfully.");
+                            } else {
+                                failed(task.getException());
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Clears the cached session and signs user out.
+    public void signOut() {
+        handler.removeCallbacks(revalidation);
+        preferences.edit().clear().apply();
+        FirebaseAuth.getInstance().signOut();
+    }
+
+    // Invalid users invalidate the session, while other failures are retried.
+    private void failed(Exception exception) {
+        revalidating = false;
+        if (exception instanceof FirebaseAuthInvalidUserException) {
+            Log.i("message", "Session user is no longer valid. Error: " + exception.getMessage());
+            invalidate();
+        } else {
+            Log.i("message", "Session revalidation failed, retrying. Error: " + (exception == null ? null : exception.getMessage()));
+            schedule(RETRY_INTERVAL);
+        }
+    }
+
+    // Monitoring service is stopped, since violations can no longer be reported.
+    private void invalidate() {
+        signOut();
+        context.stopService(new Intent(context, SpeedMonitoringService.class));
+        if (listener != null) {
+            listener.onSessionInvalidated();
+        }
+    }
+
+    private void schedule(long delay) {
+        handler.removeCallbacks(revalidation);
+        handler.postDelayed(revalidation, delay);
+    }
+}
@@ -1,8 +1,20 @@
 // -------------------------------------------------------------
 //
 // This Activity is used to monitor violations of all users, in a live map.
-// When a new violation occurs, a new Marker is created in the map.
-// Markers contain only violation's timestamp and speed.
+// When a new violation occurs, a Marker is presented in the map.
+// Markers contain only violation's timestamp and speed, and are reused
+// through the Violation Marker Manager.
+// Violations can be filtered by time window and minimum speed, using the top right menu.
+// Live mode presents only violations of the last minutes, expiring older markers.
+// Heatmap mode presents violations density, weighted by speed over the limit,
+// as a tile overlay, instead of markers.
+// Violations are kept in a local store and delta synced, so only violations
+// newer than the last synced ones are transferred.
+// Initial sync is limited to the last day. Older history is synced only as
+// the active filter requires it: time windows and minimum speeds are pushed
+// down to the Firebase indexes, while the full history of the all time filter
+// is synced on an unmetered network or while charging. Meanwhile, history of
+// the visible map region is synced through the cell index, when the camera stops.
 // Map starting position is based on user's last known position,
 // if Location permissions have been granted.
 // Network permissions are required.
@@ -18,12 +30,14 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
 import android.Manifest;
-import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
-import android.net.ConnectivityManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.Toast;
 
 import com.google.android.gms.location.LocationServices;
@@ -32,24 +46,107 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
+import com.stamatiou.sync.SyncScheduler;
+import com.stamatiou.violation.TimerWheel;
 import com.stamatiou.violation.Violation;
+import com.stamatiou.violation.ViolationFilter;
+import com.stamatiou.violation.ViolationStore;
+import com.stamatiou.violation.ViolationSync;
 
-import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
-public class AllViolationsMapActivity extends AppCompatActivity implements OnMapReadyCallback {
+public class AllViolationsMapActivity extends AppCompatActivity implements OnMapReadyCallback, ViolationSync.Listener {
 
     private final static int REQ_CODE = 765;
+    private final static int LIVE_MINUTES = 15;
+    private final static long EXPIRY_TICK = 10000; // Live markers expiration check interval, in milliseconds.
+    private final static long HEATMAP_REFRESH_DELAY = 1000; // Heatmap updates batching delay, in milliseconds.
     private Boolean locationPermissionGranted;
     private GoogleMap violationsMap;
-    private DatabaseReference violationsReference;
-    private SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+    private ViolationStore violationStore;
+    private ViolationSync violationSync;
+    private ViolationMarkerManager markerManager;
+    private ViolationFilter filter;
+    private Long timeWindow;
+    private Float minimumSpeed;
+    private Boolean liveMode = false;
+    private Boolean heatmapMode = false;
+    private Float speedLimit;
+    private ViolationHeatmapTileProvider heatmapProvider = new ViolationHeatmapTileProvider();
+    private TileOverlay heatmapOverlay;
+    private Handler heatmapHandler = new Handler(Looper.getMainLooper());
+    private Runnable heatmapRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (heatmapOverlay != null) {
+                heatmapOverlay.clearTileCache();
+            }
+        }
+    };
+    // Violations synced or removed while the stored violations are queried,
+    // so the query result does not revert them.
+    private Map<String, Violation> syncedDuringQuery;
+    private Set<String> removedDuringQuery;
+    // Violations are delta synced on any network, releasing Firebase listeners while offline.
+    // Initial sync is limited to the last day, and the history the active filter requires is synced.
+    private SyncScheduler.SyncTask connectivityTask = new SyncScheduler.SyncTask() {
+        @Override
+        public void onSync() {
+            violationSync.start(false);
+            if (filter != null) {
+                violationSync.syncFilter(filter);
+            }
+        }
+
+        @Override
+        public void onOffline() {
+            violationSync.stop();
+            Toast.makeText(getApplicationContext(), R.string.internet_provider_disabled, Toast.LENGTH_LONG).show();
+        }
+    };
+    // Full violations history is a bulk download, so it is synced on unmetered networks or while charging,
+    // only when presented by the all time filter.
+    private SyncScheduler.SyncTask historyTask = new SyncScheduler.SyncTask() {
+        @Override
+        public void onSync() {
+            if (requiresFullHistory()) {
+                violationSync.backfill();
+            }
+        }
+
+        @Override
+        public void onOffline() {}
+    };
+    private TimerWheel<String> expiryWheel;
+    private Handler expiryHandler = new Handler(Looper.getMainLooper());
+    private Runnable expiryTick = new Runnable() {
+        @Override
+        public void run() {
+            if (expiryWheel != null) {
+                for (String key : expiryWheel.advance(System.currentTimeMillis())) {
+                    if (heatmapMode) {
+                        heatmapProvider.remove(key);
+                        scheduleHeatmapRefresh();
+                    } else {
+                        markerManager.hide(key);
+                    }
+                }
+                expiryHandler.postDelayed(this, EXPIRY_TICK);
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -59,17 +156,33 @@ public class AllViolationsMapActivity extends AppCompatActivity implements OnMap
     }
 
     // Activity initialization method.
-    // Application checks Network availability and informs user of its status.
+    // Application monitors Network availability through the Sync Scheduler and informs user of its status.
     // Google Map fragment is initialized.
     // If user has granted Location permissions, map camera is moved to user's
     // last known location.
     private void allViolationsMapInit() {
         Log.i("message","AllViolationsMapInit method started.");
         try {
-            ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-            if (cm == null || cm.getActiveNetworkInfo() == null || !cm.getActiveNetworkInfo().isConnected()) {
-                Toast.makeText(this, R.string.internet_provider_disabled, Toast.LENGTH_LONG).show();
-            }
+            violationStore = ViolationStore.getInstance(this);
+            violationSync = new ViolationSync(violationStore, null, this);
+            SpeedometerApplication.getSyncScheduler(this).register(connectivityTask, SyncScheduler.Constraint.ANY_NETWORK);
+            SpeedometerApplication.getSyncScheduler(this).register(historyTask, SyncScheduler.Constraint.UNMETERED_OR_CHARGING);
+            FirebaseDatabase.getInstance().getReference("configuration/speed_limit").addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                    if (dataSnapshot.getValue() != null) {
+                        speedLimit = Float.parseFloat(dataSnapshot.getValue().toString());
+                        if (heatmapMode && violationsMap != null) {
+                            applyFilter();
+                        }
+                    }
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError databaseError) {
+                    Log.i("message", "Failed to retrieve speed limit value. Error: " + databaseError.toException());
+                }
+            });
             SupportMapFragment mapFragment = (SupportMapFragment) getSupportFragmentManager().findFragmentById(R.id.map);
             mapFragment.getMapAsync(this);
 
@@ -95,45 +208,292 @@ public class AllViolationsMapActivity extends AppCompatActivity implements OnMap
     }
 
     // Google Map fragment post initialization method.
-    // Firebase value event listener for violations is created.
-    // Map markers are created in a live manner.
+    // Stored violations are presented using the active filter.
+    // When the camera stops, the visible region's history is synced.
     @Override
     public void onMapReady(GoogleMap googleMap) {
         Log.i("message","OnMapReady method started.");
         try {
             violationsMap = googleMap;
-            violationsReference = FirebaseDatabase.getInstance().getReference("violations");
-            violationsReference.addValueEventListener(new ValueEventListener() {
+            markerManager = new ViolationMarkerManager(violationsMap);
+            violationsMap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
                 @Override
-                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                    violationsMap.clear();
-                    for (DataSnapshot user : dataSnapshot.getChildren()) {
-                        for (DataSnapshot userViolation : user.getChildren()) {
-                            Violation violation = userViolation.getValue(Violation.class);
-                            LatLng violationLocation = new LatLng(violation.getLatitude(), violation.getLongitude());
-                            violationsMap.addMarker(new MarkerOptions().position(violationLocation)
-                                                                       .title(dateFormatter.format(violation.getTimestamp()))
-                                                                       .snippet("Speed: " + String.format("%.2f", violation.getSpeed()) + " km/h"));
+                public void onCameraIdle() {
+                    LatLngBounds bounds = violationsMap.getProjection().getVisibleRegion().latLngBounds;
+                    violationSync.syncRegion(bounds.southwest.latitude, bounds.southwest.longitude, bounds.northeast.latitude, bounds.northeast.longitude);
+                }
+            });
+            applyFilter();
+            Log.i("message","OnMapReady method completed successfully.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i("message","Exception during OnMapReady method:" + e.getMessage());
+            Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.all_violations_map_menu, menu);
+        return true;
+    }
+
+    // Time window, speed threshold and heatmap mode selection.
+    // On selection change, violations are reloaded using the new filter.
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.heatmap) {
+            heatmapMode = !heatmapMode;
+            item.setChecked(heatmapMode);
+            if (!heatmapMode && heatmapOverlay != null) {
+                heatmapOverlay.remove();
+                heatmapOverlay = null;
+            }
+            if (violationsMap != null) {
+                applyFilter();
+            }
+            return true;
+        } else if (id == R.id.allTime) {
+            timeWindow = null;
+            liveMode = false;
+        } else if (id == R.id.lastHour) {
+            timeWindow = 3600000L;
+            liveMode = false;
+        } else if (id == R.id.lastDay) {
+            timeWindow = 86400000L;
+            liveMode = false;
+        } else if (id == R.id.liveWindow) {
+            timeWindow = LIVE_MINUTES * 60000L;
+            liveMode = true;
+        } else if (id == R.id.anySpeed) {
+            minimumSpeed = null;
+        } else if (id == R.id.above80) {
+            minimumSpeed = 80f;
+        } else if (id == R.id.above100) {
+            minimumSpeed = 100f;
+        } else if (id == R.id.above120) {
+            minimumSpeed = 120f;
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+        item.setChecked(true);
+        if (violationsMap != null) {
+            applyFilter();
+        }
+        return true;
+    }
 
+    // Builds the active filter and presents the matching stored violations.
+    // Filters are applied on the indexed store columns, off the main thread, while
+    // Firebase transfers only violations newer than the high water mark, and the
+    // older history the filter requires.
+    private void applyFilter() {
+        Log.i("message","ApplyFilter method started.");
+        try {
+            stopExpiry();
+            ViolationFilter.Builder builder = new ViolationFilter.Builder().withMinimumSpeed(minimumSpeed);
+            if (liveMode) {
+                builder.withLiveMinutes(LIVE_MINUTES);
+                expiryWheel = new TimerWheel<>(EXPIRY_TICK, LIVE_MINUTES * 60 / (int) (EXPIRY_TICK / 1000) + 1, System.currentTimeMillis());
+                expiryHandler.postDelayed(expiryTick, EXPIRY_TICK);
+            } else if (timeWindow != null) {
+                builder.withSince(System.currentTimeMillis() - timeWindow);
+            }
+            filter = builder.build();
+            violationSync.syncFilter(filter);
+            if (requiresFullHistory() && SpeedometerApplication.getSyncScheduler(this).isBulkAllowed()) {
+                violationSync.backfill();
+            }
+            if (requiresFullHistory()) {
+                violationStore.execute(new ViolationStore.Operation<Boolean>() {
+                    @Override
+                    public Boolean run(ViolationStore store) {
+                        return store.isPartiallySynced(ViolationSync.GLOBAL_CURSOR);
+                    }
+                }, new ViolationStore.Callback<Boolean>() {
+                    @Override
+                    public void onResult(Boolean partiallySynced) {
+                        if (!isFinishing() && partiallySynced) {
+                            Toast.makeText(getApplicationContext(), R.string.history_deferred, Toast.LENGTH_LONG).show();
                         }
                     }
+                });
+            }
+            violationSync.flush();
+            final ViolationFilter queriedFilter = filter;
+            final Boolean queriedHeatmap = heatmapMode;
+            final Float queriedSpeedLimit = speedLimit;
+            syncedDuringQuery = new HashMap<>();
+            removedDuringQuery = new HashSet<>();
+            violationStore.execute(new ViolationStore.Operation<Map<String, Violation>>() {
+                @Override
+                public Map<String, Violation> run(ViolationStore store) {
+                    Map<String, Violation> violations = store.query(queriedFilter, null);
+                    if (queriedHeatmap) {
+                        heatmapProvider.setViolations(violations, queriedSpeedLimit);
+                    }
+                    return violations;
                 }
-
+            }, new ViolationStore.Callback<Map<String, Violation>>() {
                 @Override
-                public void onCancelled(@NonNull DatabaseError databaseError) {
-                    Log.i("message", "Failed to retrieve user violations. Error: " + databaseError.toException());
-                    violationsMap.clear();
-                    Toast.makeText(getApplicationContext(), "Failed to retrieve user violations, check log file for more information.", Toast.LENGTH_SHORT).show();
+                public void onResult(Map<String, Violation> violations) {
+                    if (!isFinishing() && queriedFilter == filter) {
+                        presentViolations(violations);
+                    }
                 }
             });
-            Log.i("message","OnMapReady method completed successfully.");
+            Log.i("message","ApplyFilter method completed successfully.");
         } catch (Exception e) {
             e.printStackTrace();
-            Log.i("message","Exception during OnMapReady method:" + e.getMessage());
+            Log.i("message","Exception during ApplyFilter method:" + e.getMessage());
             Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
         }
     }
 
+    // Checks whether the active filter presents the full history, which cannot be pushed down.
+    private Boolean requiresFullHistory() {
+        return !liveMode && timeWindow == null && minimumSpeed == null;
+    }
+
+    // Presents the queried stored violations, replacing the presented ones.
+    // Violations synced or removed meanwhile are already presented.
+    // In heatmap mode, queried violations are already aggregated by the heatmap, while
+    // violations synced or removed meanwhile are applied again, as they may have
+    // updated the replaced heatmap violations.
+    private void presentViolations(Map<String, Violation> violations) {
+        violations.keySet().removeAll(removedDuringQuery);
+        Set<String> keys = new HashSet<>(violations.keySet());
+        keys.addAll(syncedDuringQuery.keySet());
+        markerManager.retain(heatmapMode ? Collections.<String>emptySet() : keys);
+        for (Map.Entry<String, Violation> entry : violations.entrySet()) {
+            if (syncedDuringQuery.containsKey(entry.getKey())) {
+                continue;
+            }
+            if (heatmapMode) {
+                scheduleExpiry(entry.getKey(), entry.getValue());
+            } else {
+                addMarker(entry.getKey(), entry.getValue());
+            }
+        }
+        if (heatmapMode) {
+            for (String key : removedDuringQuery) {
+                heatmapProvider.remove(key);
+            }
+            for (Map.Entry<String, Violation> entry : syncedDuringQuery.entrySet()) {
+                if (entry.getValue() != null && filter.matches(entry.getValue())) {
+                    heatmapProvider.put(entry.getKey(), entry.getValue());
+                } else {
+                    heatmapProvider.remove(entry.getKey());
+                }
+            }
+            refreshHeatmap();
+        }
+        syncedDuringQuery = null;
+        removedDuringQuery = null;
+    }
+
+    // On synced violation, its marker is updated, or hidden when violation no longer matches the filter.
+    @Override
+    public void onViolationSynced(String key, String userId, Violation violation) {
+        if (syncedDuringQuery != null) {
+            syncedDuringQuery.put(key, violation);
+            removedDuringQuery.remove(key);
+        }
+        if (violationsMap != null && !addMarker(key, violation)) {
+            markerManager.hide(key);
+            if (heatmapMode) {
+                heatmapProvider.remove(key);
+                scheduleHeatmapRefresh();
+            }
+        }
+    }
+
+    @Override
+    public void onViolationRemoved(String key) {
+        if (removedDuringQuery != null) {
+            removedDuringQuery.add(key);
+            syncedDuringQuery.remove(key);
+        }
+        if (markerManager != null) {
+            markerManager.hide(key);
+            if (heatmapMode) {
+                heatmapProvider.remove(key);
+                scheduleHeatmapRefresh();
+            }
+        }
+    }
+
+    // On synced history, stored violations are presented again.
+    @Override
+    public void onHistorySynced() {
+        if (violationsMap != null) {
+            applyFilter();
+        }
+    }
+
+    // Presents a violation marker, if violation matches the active filter.
+    // In heatmap mode, violation is added to the heatmap bins instead.
+    // Returns whether the violation is presented.
+    private Boolean addMarker(String key, Violation violation) {
+        if (violation == null || !filter.matches(violation)) {
+            return false;
+        }
+        if (heatmapMode) {
+            heatmapProvider.put(key, violation);
+            scheduleHeatmapRefresh();
+        } else {
+            markerManager.show(key, violation);
+        }
+        scheduleExpiry(key, violation);
+        return true;
+    }
+
+    // In live mode, violation is scheduled to expire when it leaves the live window.
+    private void scheduleExpiry(String key, Violation violation) {
+        if (filter.isLive()) {
+            expiryWheel.add(key, violation.getTimestamp().getTime() + filter.getLiveWindow());
+        }
+    }
+
+    // Presents the heatmap violations, adding the heatmap overlay if not present.
+    // Heatmap violations are replaced on the store's background thread, along with their query,
+    // and updated one by one afterwards, while overlay tiles are rendered again,
+    // by the map's background threads.
+    private void refreshHeatmap() {
+        heatmapHandler.removeCallbacks(heatmapRefresh);
+        if (heatmapOverlay == null) {
+            heatmapOverlay = violationsMap.addTileOverlay(new TileOverlayOptions().tileProvider(heatmapProvider));
+        } else {
+            heatmapOverlay.clearTileCache();
+        }
+    }
+
+    // Batches overlay tile cache clears of frequent violation updates.
+    private void scheduleHeatmapRefresh() {
+        heatmapHandler.removeCallbacks(heatmapRefresh);
+        heatmapHandler.postDelayed(heatmapRefresh, HEATMAP_REFRESH_DELAY);
+    }
+
+    // Stops live markers expiration.
+    private void stopExpiry() {
+        expiryHandler.removeCallbacks(expiryTick);
+        if (expiryWheel != null) {
+            expiryWheel.clear();
+            expiryWheel = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        SpeedometerApplication.getSyncScheduler(this).unregister(connectivityTask);
+        SpeedometerApplication.getSyncScheduler(this).unregister(historyTask);
+        violationSync.stop();
+        stopExpiry();
+        heatmapHandler.removeCallbacks(heatmapRefresh);
+        super.onDestroy();
+    }
+
     // Check location permissions.
     // If permissions are not granted, application requests them.
     private void checkLocationPermission() {
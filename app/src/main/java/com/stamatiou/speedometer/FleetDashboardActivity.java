@@ -0,0 +1,299 @@
+// -------------------------------------------------------------
+//
+// This Activity is used to monitor live statistics of all drivers.
+// For each driver, violations count, worst speed and daily violations
+// of the last 7 days are presented.
+// Statistics are seeded once from the local Violation Store, off the main
+// thread, and are then maintained by the Violation Aggregator from synced
+// violation events, without rescanning violations.
+// Drivers can be sorted by violations count, worst speed or violations
+// of the last 7 days, using the top right menu.
+// Admins start the one-time violations index migration from the same menu,
+// after the fan-out write path is deployed.
+// Network permissions are required.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.speedometer;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.DefaultItemAnimator;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.google.firebase.database.FirebaseDatabase;
+import com.stamatiou.sync.SyncScheduler;
+import com.stamatiou.violation.DriverStatistics;
+import com.stamatiou.violation.DriverStatisticsAdapter;
+import com.stamatiou.violation.Violation;
+import com.stamatiou.violation.ViolationAggregator;
+import com.stamatiou.violation.ViolationIndexMigrator;
+import com.stamatiou.violation.ViolationStore;
+import com.stamatiou.violation.ViolationSync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FleetDashboardActivity extends AppCompatActivity implements ViolationSync.Listener {
+
+    private final static long REFRESH_DELAY = 500; // Dashboard refresh batching delay, in milliseconds.
+    private ViolationStore violationStore;
+    private ViolationSync violationSync;
+    private ViolationAggregator aggregator = new ViolationAggregator();
+    // Violation events received while statistics are seeded, applied again to the
+    // seeded statistics. Removed violations have no violation.
+    private Map<String, Violation> seedingViolations;
+    private Map<String, String> seedingUsers;
+    private int seedGeneration;
+    private List<DriverStatistics> drivers = new ArrayList<>();
+    private DriverStatisticsAdapter driversAdapter;
+    private Comparator<DriverStatistics> order = byCount();
+    private Handler refreshHandler = new Handler(Looper.getMainLooper());
+    private Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshDrivers();
+        }
+    };
+    // Violations are delta synced on any network, releasing Firebase listeners while offline.
+    private SyncScheduler.SyncTask connectivityTask = new SyncScheduler.SyncTask() {
+        @Override
+        public void onSync() {
+            violationSync.start(SpeedometerApplication.getSyncScheduler(getApplicationContext()).isBulkAllowed());
+        }
+
+        @Override
+        public void onOffline() {
+            violationSync.stop();
+            Toast.makeText(getApplicationContext(), R.string.internet_provider_disabled, Toast.LENGTH_LONG).show();
+        }
+    };
+    // Full violations history is a bulk download, so it is synced on unmetered networks or while charging.
+    private SyncScheduler.SyncTask historyTask = new SyncScheduler.SyncTask() {
+        @Override
+        public void onSync() {
+            violationSync.backfill();
+        }
+
+        @Override
+        public void onOffline() {}
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_fleet_dashboard);
+        fleetDashboardInit();
+    }
+
+    @Override
+    protected void onDestroy() {
+        SpeedometerApplication.getSyncScheduler(this).unregister(connectivityTask);
+        SpeedometerApplication.getSyncScheduler(this).unregister(historyTask);
+        violationSync.stop();
+        refreshHandler.removeCallbacks(refresh);
+        super.onDestroy();
+    }
+
+    // Fleet Dashboard initialization method.
+    // Statistics are seeded from the stored violations, and sync is registered
+    // to the Sync Scheduler.
+    private void fleetDashboardInit() {
+        Log.i("message","FleetDashboardInit method started.");
+        try {
+            RecyclerView recyclerView = findViewById(R.id.recyclerView);
+            recyclerView.setLayoutManager(new LinearLayoutManager(this));
+            recyclerView.setItemAnimator(new DefaultItemAnimator());
+            driversAdapter = new DriverStatisticsAdapter(drivers);
+            recyclerView.setAdapter(driversAdapter);
+
+            violationStore = ViolationStore.getInstance(this);
+            violationSync = new ViolationSync(violationStore, null, this);
+            seedStatistics();
+            SpeedometerApplication.getSyncScheduler(this).register(connectivityTask, SyncScheduler.Constraint.ANY_NETWORK);
+            SpeedometerApplication.getSyncScheduler(this).register(historyTask, SyncScheduler.Constraint.UNMETERED_OR_CHARGING);
+            Log.i("message","FleetDashboardInit method completed successfully.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i("message","Exception during FleetDashboardInit method:" + e.getMessage());
+            Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.fleet_dashboard_menu, menu);
+        return true;
+    }
+
+    // Drivers sort order selection, or index migration.
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.migrateIndex) {
+            migrateIndex();
+            return true;
+        } else if (id == R.id.sortByCount) {
+            order = byCount();
+        } else if (id == R.id.sortByWorstSpeed) {
+            order = byWorstSpeed();
+        } else if (id == R.id.sortByWeek) {
+            order = byWeekCount(System.currentTimeMillis());
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+        item.setChecked(true);
+        refreshDrivers();
+        return true;
+    }
+
+    // Starts the violations index migration, which is skipped when already
+    // running elsewhere or up to date.
+    private void migrateIndex() {
+        Log.i("message","MigrateIndex method started.");
+        new ViolationIndexMigrator(FirebaseDatabase.getInstance().getReference(), new ViolationIndexMigrator.Callback() {
+            @Override
+            public void onMigrationCompleted(int violations) {
+                Toast.makeText(getApplicationContext(), getString(R.string.index_migrated, violations), Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onMigrationFailed(Exception exception) {
+                Log.i("message","Violations index migration failed. Error: " + exception);
+                Toast.makeText(getApplicationContext(), R.string.index_migration_failed, Toast.LENGTH_LONG).show();
+            }
+        }).migrate();
+    }
+
+    // On synced violation, its driver's statistics are updated.
+    @Override
+    public void onViolationSynced(String key, String userId, Violation violation) {
+        if (seedingViolations != null) {
+            seedingViolations.put(key, violation);
+            seedingUsers.put(key, userId);
+        }
+        aggregator.add(key, userId, violation);
+        scheduleRefresh();
+    }
+
+    @Override
+    public void onViolationRemoved(String key) {
+        if (seedingViolations != null) {
+            seedingViolations.put(key, null);
+            seedingUsers.remove(key);
+        }
+        aggregator.remove(key);
+        scheduleRefresh();
+    }
+
+    // History is written directly to the store, so statistics are seeded again.
+    @Override
+    public void onHistorySynced() {
+        violationSync.flush();
+        seedStatistics();
+    }
+
+    // Aggregates all stored violations once, off the main thread, and replaces the statistics.
+    // Violations are read with their users, using a single store query.
+    private void seedStatistics() {
+        final int generation = ++seedGeneration;
+        if (seedingViolations == null) {
+            seedingViolations = new LinkedHashMap<>();
+            seedingUsers = new HashMap<>();
+        }
+        violationStore.execute(new ViolationStore.Operation<ViolationAggregator>() {
+            @Override
+            public ViolationAggregator run(ViolationStore store) {
+                final ViolationAggregator seeded = new ViolationAggregator();
+                store.forEach(null, null, new ViolationStore.Visitor() {
+                    @Override
+                    public void visit(String key, String userId, Violation violation) {
+                        seeded.add(key, userId, violation);
+                    }
+                });
+                return seeded;
+            }
+        }, new ViolationStore.Callback<ViolationAggregator>() {
+            @Override
+            public void onResult(ViolationAggregator seeded) {
+                if (isFinishing() || generation != seedGeneration) {
+                    return;
+                }
+                for (Map.Entry<String, Violation> entry : seedingViolations.entrySet()) {
+                    if (entry.getValue() != null) {
+                        seeded.add(entry.getKey(), seedingUsers.get(entry.getKey()), entry.getValue());
+                    } else {
+                        seeded.remove(entry.getKey());
+                    }
+                }
+                seedingViolations = null;
+                seedingUsers = null;
+                aggregator = seeded;
+                refreshDrivers();
+            }
+        });
+    }
+
+    // Batches dashboard refreshes of frequent violation events.
+    private void scheduleRefresh() {
+        refreshHandler.removeCallbacks(refresh);
+        refreshHandler.postDelayed(refresh, REFRESH_DELAY);
+    }
+
+    // Sorts drivers using the selected order and refreshes the dashboard.
+    private void refreshDrivers() {
+        refreshHandler.removeCallbacks(refresh);
+        drivers.clear();
+        drivers.addAll(aggregator.getDrivers());
+        Collections.sort(drivers, order);
+        driversAdapter.notifyDataSetChanged();
+        if (!drivers.isEmpty()) {
+            ((TextView) findViewById(R.id.titleView)).setText("Drivers (" + drivers.size() + "): ");
+        } else {
+            ((TextView) findViewById(R.id.titleView)).setText(R.string.no_drivers_message);
+        }
+    }
+
+    private static Comparator<DriverStatistics> byCount() {
+        return new Comparator<DriverStatistics>() {
+            @Override
+            public int compare(DriverStatistics first, DriverStatistics second) {
+                return second.getCount() - first.getCount();
+            }
+        };
+    }
+
+    private static Comparator<DriverStatistics> byWorstSpeed() {
+        return new Comparator<DriverStatistics>() {
+            @Override
+            public int compare(DriverStatistics first, DriverStatistics second) {
+                return Float.compare(second.getWorstSpeed(), first.getWorstSpeed());
+            }
+        };
+    }
+
+    private static Comparator<DriverStatistics> byWeekCount(final long now) {
+        return new Comparator<DriverStatistics>() {
+            @Override
+            public int compare(DriverStatistics first, DriverStatistics second) {
+                return second.getWeekCount(now) - first.getWeekCount(now);
+            }
+        };
+    }
+}
@@ -2,6 +2,9 @@
 //
 // This is the main Activity, used to authenticate users before
 // using the application.
+// Returning users with a cached verified session skip the sign in, and are
+// redirected to SpeedometerActivity directly, while the session is revalidated
+// in the background.
 //
 // Author: Aggelos Stamatiou, July 2020
 //
@@ -26,27 +29,47 @@ import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
+import com.stamatiou.session.SessionManager;
 
 public class LoginActivity extends AppCompatActivity {
 
+    // Firebase connection is warmed in parallel with layout inflation.
+    // Restored sessions skip the layout inflation.
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        SpeedometerApplication.warmUpDatabase();
+        if (restoreSession()) {
+            return;
+        }
         setContentView(R.layout.activity_login);
         loginInit();
+        StartupTrace.mark("login_created");
+    }
+
+    // If user has a cached verified session, user is redirected to SpeedometerActivity,
+    // without any network round trip, and session is revalidated asynchronously.
+    // Returns whether the session was restored.
+    private Boolean restoreSession() {
+        SessionManager sessionManager = SpeedometerApplication.getSessionManager(this);
+        if (!sessionManager.hasVerifiedSession()) {
+            return false;
+        }
+        Log.i("message","User is already logged in.");
+        StartupTrace.mark("session_restored");
+        sessionManager.revalidate();
+        startSpeedometer();
+        return true;
     }
 
     // Activity initialization method.
-    // If user is already authenticated, user is redirected to SpeedometerActivity.
+    // If user is known but has no valid cached session, user's email is prefilled.
     private void loginInit() {
         Log.i("message","LoginInit method started.");
         try {
             FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
-            if (user != null && user.isEmailVerified()) {
-                Log.i("message","User is already logged in.");
+            if (user != null) {
                 ((EditText) findViewById(R.id.emailEditText)).setText(user.getEmail());
-                Intent intent = new Intent(this, SpeedometerActivity.class);
-                startActivity(intent);
             }
             findViewById(R.id.loginButton).setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -88,8 +111,8 @@ public class LoginActivity extends AppCompatActivity {
                                                       Log.i("message","Login action was successful!");
                                                       if (FirebaseAuth.getInstance().getCurrentUser().isEmailVerified()) {
                                                           Toast.makeText(getApplicationContext(), "You have been successfully logged in!", Toast.LENGTH_SHORT).show();
-                                                          Intent intent = new Intent(getApplicationContext(), SpeedometerActivity.class);
-                                                          startActivity(intent);
+                                                          SpeedometerApplication.getSessionManager(getApplicationContext()).store(FirebaseAuth.getInstance().getCurrentUser());
+                                                          startSpeedometer();
                                                       } else {
                                                           Toast.makeText(getApplicationContext(), "Account has not been verified! Please check your emails!", Toast.LENGTH_SHORT).show();
                                                       }
@@ -186,11 +209,19 @@ public class LoginActivity extends AppCompatActivity {
         return true;
     }
 
-    // On activity restart, user is unauthenticated and has to re-login.
+    // Redirects user to SpeedometerActivity.
+    // Login is finished, so leaving the speedometer exits the application,
+    // while signing out returns to a new Login.
+    private void startSpeedometer() {
+        startActivity(new Intent(this, SpeedometerActivity.class));
+        finish();
+    }
+
+    // On activity restart, password field is cleared.
+    // Session is kept, until user signs out explicitly or it is invalidated.
     @Override
     protected void onRestart() {
         super.onRestart();
         ((EditText) findViewById(R.id.passwordEditText)).getText().clear();
-        FirebaseAuth.getInstance().signOut();
     }
 }
\ No newline at end of file
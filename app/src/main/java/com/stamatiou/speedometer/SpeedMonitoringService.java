@@ -0,0 +1,340 @@
+// -------------------------------------------------------------
+//
+// This foreground Service is used to monitor user's current speed and
+// report violations, independently of the Speedometer Activity.
+// Location intake, violation detection and uploads run on the service's
+// own worker thread, so monitoring continues while the screen is backgrounded.
+// Application uses two parameters to determine a speed violation:
+//      1. Speed limit: speed limit value, provided by the Firebase
+//      2. Warning limit: 10% greater than speed limit value, used to inform
+//      users that they have exceeded the limit and a violation occurs.
+// If user's speed surpasses the warning limit, a violation record is created.
+// Activities can attach an Observer to receive state updates, throttled
+// to at most 10 per second. When no Observer is attached, no updates are dispatched.
+// Location permissions are required.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.speedometer;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+import com.stamatiou.violation.HotspotTileCache;
+import com.stamatiou.violation.Violation;
+import com.stamatiou.violation.ViolationIndex;
+
+import java.util.Date;
+
+public class SpeedMonitoringService extends Service implements LocationListener {
+
+    public enum Status { IDLE, NORMAL, HOTSPOT, WARNING, EXCEEDED, PROVIDER_DISABLED, PROVIDER_STATUS_CHANGED }
+
+    // Monitoring state, as presented to Observers.
+    public static class State {
+
+        private final Float speed;
+        private final Status status;
+
+        private State(Float speed, Status status) {
+            this.speed = speed;
+            this.status = status;
+        }
+
+        public Float getSpeed() {
+            return speed;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        // Checks whether state was produced by a location fix.
+        public Boolean isSpeedReading() {
+            return status == Status.NORMAL || status == Status.HOTSPOT || status == Status.WARNING || status == Status.EXCEEDED;
+        }
+    }
+
+    public interface Observer {
+        void onStateChanged(State state);
+    }
+
+    public class MonitoringBinder extends Binder {
+        public SpeedMonitoringService getService() {
+            return SpeedMonitoringService.this;
+        }
+    }
+
+    private final static String CHANNEL_ID = "speed_monitoring";
+    private final static int NOTIFICATION_ID = 1;
+    private final static long DISPATCH_INTERVAL = 100; // Minimum interval between Observer updates, in milliseconds.
+
+    private final IBinder binder = new MonitoringBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread workerThread;
+    private Handler workerHandler;
+    private boolean monitoringStarted; // Accessed only on the worker thread.
+    private volatile Float speedLimit;
+    private volatile Float warningSpeed;
+    private Location speedLimitExceedingLocation;
+    private DatabaseReference rootReference;
+    private String userId;
+    private DatabaseReference speedLimitReference;
+    private ValueEventListener speedLimitListener;
+    private HotspotTileCache hotspotTileCache;
+    private volatile State state = new State(0f, Status.IDLE);
+    private volatile Observer observer;
+    private volatile boolean dispatchPending;
+    private volatile long lastDispatch;
+    private final Runnable monitoringStart = new Runnable() {
+        @Override
+        public void run() {
+            if (!monitoringStarted) {
+                monitoringInit();
+            }
+        }
+    };
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPending = false;
+            lastDispatch = SystemClock.uptimeMillis();
+            Observer current = observer;
+            if (current != null) {
+                current.onStateChanged(state);
+            }
+        }
+    };
+
+    // Service initialization method.
+    // Service's worker thread is started. Monitoring itself starts only on a
+    // start command, since service can be created by a binding before location
+    // permission is granted, and no notification must be shown until then.
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i("message","SpeedMonitoringService onCreate method started.");
+        try {
+            workerThread = new HandlerThread("SpeedMonitoring");
+            workerThread.start();
+            workerHandler = new Handler(workerThread.getLooper());
+            Log.i("message","SpeedMonitoringService onCreate method completed successfully.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i("message","Exception during SpeedMonitoringService onCreate method:" + e.getMessage());
+            stopSelf();
+        }
+    }
+
+    // Monitoring initialization method, executed on the worker thread.
+    // Firebase value event listener for the speed limit is created.
+    // User's violations Firebase reference is initialized.
+    // Location updates are delivered on the worker thread.
+    private void monitoringInit() {
+        Log.i("message","MonitoringInit method started.");
+        try {
+            FirebaseUser user = FirebaseAuth.getInstance().getCurrentUser();
+            if (user == null) {
+                Log.i("message","No authenticated user, speed monitoring stopped.");
+                stopMonitoring();
+                return;
+            }
+            speedLimit = Float.parseFloat("60.00"); // Default speed limit value.
+            warningSpeed = speedLimit * Float.parseFloat("1.10"); // Default warning speed value.
+            ((LocationManager) getSystemService(LOCATION_SERVICE)).requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this, workerThread.getLooper());
+            speedLimitReference = FirebaseDatabase.getInstance().getReference("configuration/speed_limit");
+            speedLimitListener = speedLimitReference.addValueEventListener(new ValueEventListener() {
+                @Override
+                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                    if (dataSnapshot.getValue() != null) {
+                        speedLimit = Float.parseFloat(dataSnapshot.getValue().toString());
+                        warningSpeed = speedLimit * Float.parseFloat("1.10");
+                    }
+                    Log.i("message", "Speed limit value set to: " + String.format("%.2f", speedLimit) + " km/h");
+                }
+
+                @Override
+                public void onCancelled(@NonNull DatabaseError databaseError) {
+                    Log.i("message", "Failed to retrieve speed limit value. Error: " + databaseError.toException());
+                }
+            });
+            rootReference = FirebaseDatabase.getInstance().getReference();
+            userId = user.getUid();
+            hotspotTileCache = new HotspotTileCache();
+            monitoringStarted = true;
+            Log.i("message","MonitoringInit method completed successfully.");
+        } catch (SecurityException e) {
+            Log.i("message","Location permission not granted, speed monitoring stopped.");
+            stopMonitoring();
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i("message","Exception during MonitoringInit method:" + e.getMessage());
+            stopMonitoring();
+        }
+    }
+
+    // Stops monitoring, removing the foreground notification.
+    // Service is destroyed once no Activity is bound to it.
+    private void stopMonitoring() {
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // Service is promoted to foreground on each start command, as required after
+    // startForegroundService, and an incomplete initialization is retried.
+    // Session is revalidated, since a sticky restart runs without any Activity,
+    // and an invalidated session stops the service.
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        SpeedometerApplication.getSessionManager(this).revalidate();
+        if (workerHandler != null) {
+            workerHandler.post(monitoringStart);
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i("message","SpeedMonitoringService onDestroy method started.");
+        ((LocationManager) getSystemService(LOCATION_SERVICE)).removeUpdates(this);
+        if (speedLimitListener != null) {
+            speedLimitReference.removeEventListener(speedLimitListener);
+        }
+        if (workerThread != null) {
+            workerThread.quit();
+        }
+        mainHandler.removeCallbacks(dispatch);
+        observer = null;
+        super.onDestroy();
+    }
+
+    // Attaches an Observer, which immediately receives the current state.
+    // Only one Observer is supported, as only the Speedometer Activity presents the state.
+    public void setObserver(Observer observer) {
+        this.observer = observer;
+        if (observer != null) {
+            mainHandler.removeCallbacks(dispatch);
+            mainHandler.post(dispatch);
+            dispatchPending = true;
+        }
+    }
+
+    // On location changed, user's speed is calculated in km/h.
+    // When user's speed is greater than the warning limit, a violation is recorded.
+    // When user's speed is within the limit, hotspots ahead are checked.
+    @Override
+    public void onLocationChanged(Location location) {
+        try {
+            Float speed = (18 * location.getSpeed()) / 5;
+            hotspotTileCache.update(location);
+            Status status;
+            if (speed > warningSpeed) {
+                if (speedLimitExceedingLocation == null) {
+                    speedLimitExceedingLocation = location;
+                    Violation violation = new Violation.Builder()
+                                                        .withLatitude(speedLimitExceedingLocation.getLatitude())
+                                                        .withLongitude(speedLimitExceedingLocation.getLongitude())
+                                                        .withSpeed(speed)
+                                                        .withTimestamp(new Date())
+                                                        .build();
+                    Log.i("message", "Speed limit exceeded! Violation data: " + violation.toString());
+                    ViolationIndex.write(rootReference, userId, violation);
+                }
+                status = Status.EXCEEDED;
+            } else if (speed > speedLimit) {
+                speedLimitExceedingLocation = null;
+                status = Status.WARNING;
+            } else {
+                speedLimitExceedingLocation = null;
+                status = hotspotTileCache.isHotspotAhead(location) ? Status.HOTSPOT : Status.NORMAL;
+            }
+            publish(new State(speed, status));
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i("message","Exception during SpeedMonitoringService OnLocationChanged method:" + e.getMessage());
+        }
+    }
+
+    // On Location Provider status changed, speedometer is reset.
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+        speedLimitExceedingLocation = null;
+        publish(new State(0f, Status.PROVIDER_STATUS_CHANGED));
+    }
+
+    // On Location provider enable, speedometer is reset.
+    @Override
+    public void onProviderEnabled(String provider) {
+        speedLimitExceedingLocation = null;
+        publish(new State(0f, Status.IDLE));
+    }
+
+    // On Location Provider disable, speedometer is reset.
+    @Override
+    public void onProviderDisabled(String provider) {
+        speedLimitExceedingLocation = null;
+        publish(new State(0f, Status.PROVIDER_DISABLED));
+    }
+
+    // Stores the latest state and schedules its dispatch to the Observer.
+    // Dispatches are coalesced, so the Observer receives at most one update per interval.
+    private void publish(State newState) {
+        state = newState;
+        if (observer == null || dispatchPending) {
+            return;
+        }
+        dispatchPending = true;
+        long delay = Math.max(0, lastDispatch + DISPATCH_INTERVAL - SystemClock.uptimeMillis());
+        mainHandler.postDelayed(dispatch, delay);
+    }
+
+    // Builds the foreground notification, which opens the Speedometer Activity.
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, getString(R.string.monitoring_channel), NotificationManager.IMPORTANCE_LOW);
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+        }
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, new Intent(this, SpeedometerActivity.class), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                                     .setSmallIcon(R.mipmap.ic_launcher)
+                                     .setContentTitle(getString(R.string.app_name))
+                                     .setContentText(getString(R.string.monitoring_notification))
+                                     .setContentIntent(pendingIntent)
+                                     .setOngoing(true)
+                                     .build();
+    }
+}
@@ -1,12 +1,13 @@
 // -------------------------------------------------------------
 //
-// This Activity is used to monitor user's current speed and report violations.
-// Application uses two parameters to determine a speed violation:
-//      1. Speed limit: speed limit value, provided by the Firebase
-//      2. Warning limit: 10% greater than speed limit value, used to inform
-//      users that they have exceeded the limit and a violation occurs.
-// If user's speed surpasses the warning limit, a violation record is created.
+// This Activity is used to present user's current speed and violations status.
+// Speed monitoring and violation reporting are performed by the
+// SpeedMonitoringService, which keeps running while the Activity is backgrounded.
+// Activity attaches to the service as an Observer, while it is visible.
+// Users are also warned when approaching a hotspot, an area where other drivers keep speeding.
 // User can navigate to rest application activities using the top right menu.
+// Monitoring starts immediately for restored sessions. If background session
+// revalidation fails, monitoring is stopped and user returns to Login.
 // Location permissions are required.
 //
 // Author: Aggelos Stamatiou, July 2020
@@ -18,45 +19,77 @@ package com.stamatiou.speedometer;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 
 import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.location.Location;
-import android.location.LocationListener;
-import android.location.LocationManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.firebase.auth.FirebaseAuth;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
-import com.stamatiou.violation.Violation;
+import com.stamatiou.session.SessionManager;
 
-import java.util.Date;
-
-public class SpeedometerActivity extends AppCompatActivity implements LocationListener {
+public class SpeedometerActivity extends AppCompatActivity implements SpeedMonitoringService.Observer, SessionManager.Listener {
 
     private final static int REQ_CODE = 765;
-    private Float speedLimit;
-    private Float warningSpeed;
-    private Location speedLimitExceedingLocation;
-    private DatabaseReference userViolationsReference;
+    private SpeedMonitoringService monitoringService;
+    private final ServiceConnection monitoringConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            monitoringService = ((SpeedMonitoringService.MonitoringBinder) service).getService();
+            monitoringService.setObserver(SpeedometerActivity.this);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            monitoringService = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_speedometer);
+        SpeedometerApplication.getSessionManager(this).setListener(this);
         speedometerInit();
     }
 
+    // While Activity is visible, it observes the monitoring service state.
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, SpeedMonitoringService.class), monitoringConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        if (monitoringService != null) {
+            monitoringService.setObserver(null);
+            monitoringService = null;
+        }
+        unbindService(monitoringConnection);
+        super.onStop();
+    }
+
+    // When user leaves the speedometer, monitoring is stopped.
+    @Override
+    protected void onDestroy() {
+        SpeedometerApplication.getSessionManager(this).setListener(null);
+        if (isFinishing()) {
+            stopService(new Intent(this, SpeedMonitoringService.class));
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.speedometer_activity_menu, menu);
@@ -71,8 +104,11 @@ public class SpeedometerActivity extends AppCompatActivity implements LocationLi
             intent = new Intent(this, UserViolationsListActivity.class);
         } else if (id == R.id.allViolations) {
             intent = new Intent(this, AllViolationsMapActivity.class);
+        } else if (id == R.id.fleetDashboard) {
+            intent = new Intent(this, FleetDashboardActivity.class);
         } else {
-            finish();
+            SpeedometerApplication.getSessionManager(this).signOut();
+            returnToLogin();
         }
         if (intent != null) {
             startActivity(intent);
@@ -80,33 +116,24 @@ public class SpeedometerActivity extends AppCompatActivity implements LocationLi
         return true;
     }
 
+    // When session is invalidated, user has to sign in again.
+    @Override
+    public void onSessionInvalidated() {
+        Toast.makeText(this, R.string.session_expired, Toast.LENGTH_LONG).show();
+        returnToLogin();
+    }
+
+    // Finishes the speedometer, stopping monitoring, and opens Login.
+    private void returnToLogin() {
+        startActivity(new Intent(this, LoginActivity.class));
+        finish();
+    }
+
     // Activity initialization method.
-    // Firebase value event listeners for the speed limit is created.
-    // User's violations Firebase reference is initialized.
     // Application checks appropriate location permissions.
     private void speedometerInit() {
         Log.i("message","SpeedometerInit method started.");
         try {
-            speedLimit = Float.parseFloat("60.00"); // Default speed limit value.
-            warningSpeed = speedLimit * Float.parseFloat("1.10"); // Default warning speed value.
-            DatabaseReference speedLimitRef = FirebaseDatabase.getInstance().getReference("configuration/speed_limit");
-            speedLimitRef.addValueEventListener(new ValueEventListener() {
-                @Override
-                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                    if (dataSnapshot.getValue() != null) {
-                        speedLimit = Float.parseFloat(dataSnapshot.getValue().toString());
-                        warningSpeed = speedLimit * Float.parseFloat("1.10");
-                    }
-                    Log.i("message", "Speed limit value set to: " + String.format("%.2f", speedLimit) + " km/h");
-                }
-
-                @Override
-                public void onCancelled(@NonNull DatabaseError databaseError) {
-                    Log.i("message", "Failed to retrieve speed limit value. Error: " + databaseError.toException());
-                    Toast.makeText(getApplicationContext(), "Failed to retrieve speed limit value, check log file for more information.", Toast.LENGTH_SHORT).show();
-                }
-            });
-            userViolationsReference = FirebaseDatabase.getInstance().getReference("violations/" + FirebaseAuth.getInstance().getCurrentUser().getUid());
             checkLocationPermission();
             Log.i("message","SpeedometerInit method completed successfully.");
         } catch (Exception e) {
@@ -116,6 +143,11 @@ public class SpeedometerActivity extends AppCompatActivity implements LocationLi
         }
     }
 
+    // Starts the speed monitoring service, which keeps running while the Activity is backgrounded.
+    private void startMonitoring() {
+        ContextCompat.startForegroundService(this, new Intent(this, SpeedMonitoringService.class));
+    }
+
     // Check location permissions.
     // If permissions are not granted, application requests them.
     // User is informed on the permissions status via a message box.
@@ -126,7 +158,7 @@ public class SpeedometerActivity extends AppCompatActivity implements LocationLi
                     && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
                 ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION}, REQ_CODE);
             } else {
-                ((LocationManager) getSystemService(LOCATION_SERVICE)).requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+                startMonitoring();
             }
             Log.i("message","CheckLocationPermission method completed successfully.");
         } catch (Exception e) {
@@ -145,7 +177,7 @@ public class SpeedometerActivity extends AppCompatActivity implements LocationLi
                 ((TextView) findViewById(R.id.messageView)).setText(R.string.permission_not_granted);
                 checkLocationPermission();
             } else {
-                ((LocationManager) getSystemService(LOCATION_SERVICE)).requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+                startMonitoring();
             }
             Log.i("message","OnRequestPermissionsResult method completed successfully.");
         } catch (Exception e) {
@@ -155,93 +187,51 @@ public class SpeedometerActivity extends AppCompatActivity implements LocationLi
         }
     }
 
-    // On location changed, user's speed is calculated in km/h.
+    // On monitoring state changed, user's speed is presented in km/h.
     // Speed text color changes and an appropriate message appears, depending on user's speed.
-    // When user's speed is greater than the warning limit, a violation is recorded.
+    // On first speed reading, startup is reported as completed and Google Maps is preloaded.
     @Override
-    public void onLocationChanged(Location location) {
-        //Log.i("message","OnLocationChanged method started.");
+    public void onStateChanged(SpeedMonitoringService.State state) {
         try {
-            Float speed = (18 * location.getSpeed()) / 5;
-            if (speed > warningSpeed) {
-                if (speedLimitExceedingLocation == null) {
-                    speedLimitExceedingLocation = location;
-                    Violation violation = new Violation.Builder()
-                                                        .withLatitude(speedLimitExceedingLocation.getLatitude())
-                                                        .withLongitude(speedLimitExceedingLocation.getLongitude())
-                                                        .withSpeed(speed)
-                                                        .withTimestamp(new Date())
-                                                        .build();
-                    Log.i("message", "Speed limit exceeded! Violation data: " + violation.toString());
-                    userViolationsReference.push().setValue(violation);
+            if (state.isSpeedReading() && StartupTrace.markFirstSpeedReading()) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    reportFullyDrawn();
                 }
-                ((TextView) findViewById(R.id.speedView)).setTextColor(0xffcc0000);
-                ((TextView) findViewById(R.id.messageView)).setTextColor(0xffcc0000);
-                ((TextView) findViewById(R.id.messageView)).setText(R.string.speed_limit_exceeded);
-            } else if (speed <= warningSpeed && speed > speedLimit) {
-                speedLimitExceedingLocation = null;
-                ((TextView) findViewById(R.id.speedView)).setTextColor(0xffff8800);
-                ((TextView) findViewById(R.id.messageView)).setTextColor(0xffff8800);
-                ((TextView) findViewById(R.id.messageView)).setText(R.string.speed_limit_warning);
-            } else if (speed <= speedLimit) {
-                speedLimitExceedingLocation = null;
-                ((TextView) findViewById(R.id.speedView)).setTextColor(0xffaaaaaa);
-                ((TextView) findViewById(R.id.messageView)).setTextColor(0xffff8800);
-                ((TextView) findViewById(R.id.messageView)).setText(null);
+                SpeedometerApplication.preloadMaps(this);
             }
-            ((TextView) findViewById(R.id.speedView)).setText(String.format("%.2f", speed) + " km/h");
-            //Log.i("message","OnLocationChanged method completed successfully.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.i("message","Exception during OnLocationChanged method:" + e.getMessage());
-            Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    // On Location Provider status changed, speedometer is reset and user is informed via a message box.
-    @Override
-    public void onStatusChanged(String provider, int status, Bundle extras) {
-        Log.i("message","OnStatusChanged method started.");
-        try {
-            speedLimitExceedingLocation = null;
-            ((TextView) findViewById(R.id.speedView)).setText(R.string.zero_speed);
-            ((TextView) findViewById(R.id.messageView)).setText(R.string.provider_status_changed);
-            Log.i("message","OnStatusChanged method completed successfully.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.i("message","Exception during OnStatusChanged method:" + e.getMessage());
-            Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    // On Location provider enable, speedometer is reset.
-    @Override
-    public void onProviderEnabled(String provider) {
-        Log.i("message","OnProviderEnabled method started.");
-        try {
-            speedLimitExceedingLocation = null;
-            ((TextView) findViewById(R.id.speedView)).setText(R.string.zero_speed);
-            ((TextView) findViewById(R.id.messageView)).setText(null);
-            Log.i("message","OnProviderEnabled method completed successfully.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.i("message","Exception during OnProviderEnabled method:" + e.getMessage());
-            Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    // On Location Provider disable, speedometer is reset and user is informed via a message box.
-    @Override
-    public void onProviderDisabled(String provider) {
-        Log.i("message","OnProviderDisabled method started.");
-        try {
-            speedLimitExceedingLocation = null;
-            ((TextView) findViewById(R.id.speedView)).setText(R.string.zero_speed);
-            ((TextView) findViewById(R.id.messageView)).setText(R.string.provider_disabled);
-            Log.i("message","OnProviderDisabled method completed successfully.");
+            TextView speedView = findViewById(R.id.speedView);
+            TextView messageView = findViewById(R.id.messageView);
+            switch (state.getStatus()) {
+                case EXCEEDED:
+                    speedView.setTextColor(0xffcc0000);
+                    messageView.setTextColor(0xffcc0000);
+                    messageView.setText(R.string.speed_limit_exceeded);
+                    break;
+                case WARNING:
+                    speedView.setTextColor(0xffff8800);
+                    messageView.setTextColor(0xffff8800);
+                    messageView.setText(R.string.speed_limit_warning);
+                    break;
+                case HOTSPOT:
+                    speedView.setTextColor(0xffaaaaaa);
+                    messageView.setTextColor(0xffff8800);
+                    messageView.setText(R.string.hotspot_warning);
+                    break;
+                case PROVIDER_DISABLED:
+                    messageView.setText(R.string.provider_disabled);
+                    break;
+                case PROVIDER_STATUS_CHANGED:
+                    messageView.setText(R.string.provider_status_changed);
+                    break;
+                default:
+                    speedView.setTextColor(0xffaaaaaa);
+                    messageView.setTextColor(0xffff8800);
+                    messageView.setText(null);
+            }
+            speedView.setText(String.format("%.2f", state.getSpeed()) + " km/h");
         } catch (Exception e) {
             e.printStackTrace();
-            Log.i("message","Exception during OnProviderDisabled method:" + e.getMessage());
+            Log.i("message","Exception during OnStateChanged method:" + e.getMessage());
             Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
         }
     }
@@ -0,0 +1,129 @@
+// -------------------------------------------------------------
+//
+// This is the Application class, used to coordinate application startup.
+// Only work required for the first screen runs on the critical path.
+// Firebase Database connection is warmed on a background thread, in parallel
+// with Login Activity inflation, and Google Maps is preloaded when the
+// main thread becomes idle, before All Violations Map Activity is opened.
+// Application also owns the Sync Scheduler and the Session Manager, shared by all Activities.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.speedometer;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import com.google.android.gms.maps.MapsInitializer;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.database.FirebaseDatabase;
+import com.stamatiou.session.SessionManager;
+import com.stamatiou.sync.AndroidConnectivitySource;
+import com.stamatiou.sync.SyncScheduler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SpeedometerApplication extends Application {
+
+    private static ExecutorService startupExecutor;
+    private static boolean databaseWarmed;
+    private static boolean mapsPreloaded;
+    private static SyncScheduler syncScheduler;
+    private static SessionManager sessionManager;
+
+    @Override
+    public void onCreate() {
+        StartupTrace.start();
+        super.onCreate();
+        startupExecutor = Executors.newSingleThreadExecutor();
+        StartupTrace.mark("application_created");
+    }
+
+    // Warms Firebase Auth and Database instances on a background thread.
+    // Speed limit configuration is kept synced, which opens the database
+    // connection before the Speedometer requires it.
+    public static void warmUpDatabase() {
+        if (databaseWarmed) {
+            return;
+        }
+        databaseWarmed = true;
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.beginSection("warmUpDatabase");
+                try {
+                    FirebaseAuth.getInstance();
+                    FirebaseDatabase.getInstance().getReference("configuration/speed_limit").keepSynced(true);
+                    StartupTrace.mark("database_warmed");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Log.i("message","Exception during WarmUpDatabase method:" + e.getMessage());
+                } finally {
+                    StartupTrace.endSection();
+                }
+            }
+        });
+    }
+
+    // Preloads Google Maps, once the main thread becomes idle.
+    // Maps initialization loads the Google Play services maps module,
+    // so it is kept off the critical path of the first speed reading.
+    public static void preloadMaps(final Context context) {
+        if (mapsPreloaded) {
+            return;
+        }
+        mapsPreloaded = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                StartupTrace.beginSection("preloadMaps");
+                try {
+                    MapsInitializer.initialize(context.getApplicationContext());
+                    StartupTrace.mark("maps_preloaded");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Log.i("message","Exception during PreloadMaps method:" + e.getMessage());
+                } finally {
+                    StartupTrace.endSection();
+                }
+                return false;
+            }
+        });
+    }
+
+    // Returns the Sync Scheduler, created on first use.
+    // Must be called on the main thread.
+    public static SyncScheduler getSyncScheduler(Context context) {
+        if (syncScheduler == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            syncScheduler = new SyncScheduler(new AndroidConnectivitySource(context), new SyncScheduler.Delayer() {
+                @Override
+                public void postDelayed(Runnable runnable, long delay) {
+                    handler.postDelayed(runnable, delay);
+                }
+
+                @Override
+                public void cancel(Runnable runnable) {
+                    handler.removeCallbacks(runnable);
+                }
+            });
+        }
+        return syncScheduler;
+    }
+
+    // Returns the Session Manager, created on first use.
+    // Must be called on the main thread.
+    public static SessionManager getSessionManager(Context context) {
+        if (sessionManager == null) {
+            sessionManager = new SessionManager(context);
+        }
+        return sessionManager;
+    }
+}
@@ -0,0 +1,71 @@
+// -------------------------------------------------------------
+//
+// This is the Startup Trace used by the application, to report
+// cold start milestones, measured from process start.
+// Milestones are logged with the "StartupTrace" tag, so they can be
+// collected by the cold start benchmark script.
+// The most important milestone is time to first speed reading.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.speedometer;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+public final class StartupTrace {
+
+    public final static String TAG = "StartupTrace";
+    public final static String FIRST_SPEED_READING = "first_speed_reading";
+
+    private static long processStart = SystemClock.uptimeMillis();
+    private static boolean firstSpeedReadingReported;
+
+    private StartupTrace() {}
+
+    // Sets the process start time, on application creation.
+    // Process start time is only available on Android N and newer,
+    // otherwise application creation time is used.
+    static void start() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            processStart = Process.getStartUptimeMillis();
+        } else {
+            processStart = SystemClock.uptimeMillis();
+        }
+    }
+
+    // Logs a milestone, with its elapsed time since process start.
+    public static void mark(String milestone) {
+        Log.i(TAG, milestone + ": " + (SystemClock.uptimeMillis() - processStart) + " ms");
+    }
+
+    // Logs the first speed reading milestone, once per process.
+    // Returns true only for the first reading.
+    public static boolean markFirstSpeedReading() {
+        if (firstSpeedReadingReported) {
+            return false;
+        }
+        firstSpeedReadingReported = true;
+        mark(FIRST_SPEED_READING);
+        return true;
+    }
+
+    // Begins a systrace section, on Android JB MR2 and newer.
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    // Ends the last systrace section of the current thread.
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
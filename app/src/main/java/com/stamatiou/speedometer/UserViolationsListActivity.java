@@ -2,6 +2,9 @@
 //
 // This Activity is used to monitor user's violations list.
 // When a new violation occurs, list is refreshed.
+// Violations are kept in a local store and synced through the Sync Scheduler:
+// when connection is lost, sync is stopped, and on reconnection, sync resumes
+// from the last synced violation, instead of re-querying the whole list.
 // Network permissions are required.
 //
 // Author: Aggelos Stamatiou, July 2020
@@ -10,7 +13,6 @@
 
 package com.stamatiou.speedometer;
 
-import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.DefaultItemAnimator;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -24,36 +26,44 @@ import android.widget.Toast;
 
 import com.google.firebase.auth.FirebaseAuth;
 
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
+import com.stamatiou.sync.SyncScheduler;
 import com.stamatiou.violation.Violation;
 import com.stamatiou.violation.ViolationAdapter;
-import com.treebo.internetavailabilitychecker.InternetAvailabilityChecker;
-import com.treebo.internetavailabilitychecker.InternetConnectivityListener;
+import com.stamatiou.violation.ViolationStore;
+import com.stamatiou.violation.ViolationSync;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-public class UserViolationsListActivity extends AppCompatActivity implements InternetConnectivityListener {
+public class UserViolationsListActivity extends AppCompatActivity implements SyncScheduler.SyncTask, ViolationSync.Listener {
 
-    private DatabaseReference userViolationsReference;
     private List<Violation> violations;
+    private List<String> violationKeys;
     private ViolationAdapter violationsAdapter;
+    private ViolationSync violationSync;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_user_violations_list);
-        InternetAvailabilityChecker.init(this);
-        InternetAvailabilityChecker.getInstance().addInternetConnectivityListener(this);
+        userViolationsListInit();
+        SpeedometerApplication.getSyncScheduler(this).register(this, SyncScheduler.Constraint.ANY_NETWORK);
+    }
+
+    @Override
+    protected void onDestroy() {
+        SpeedometerApplication.getSyncScheduler(this).unregister(this);
+        violationSync.stop();
+        super.onDestroy();
     }
 
     // User Violations List initialization method.
-    // Firebase value event listener for the user's violations is created.
-    // Violations list is refreshed in a live manner.
+    // Recycler View and its adapter are created once, and kept across reconnections.
+    // User's stored violations are queried off the main thread, and presented newest first,
+    // below any violation already synced meanwhile.
     private void userViolationsListInit() {
         Log.i("message","UserViolationsListInit method started.");
         try {
@@ -62,28 +72,36 @@ public class UserViolationsListActivity extends AppCompatActivity implements Int
             recyclerView.setItemAnimator(new DefaultItemAnimator());
 
             violations = new ArrayList<>();
+            violationKeys = new ArrayList<>();
+            final String userId = FirebaseAuth.getInstance().getCurrentUser().getUid();
+            ViolationStore violationStore = ViolationStore.getInstance(this);
             violationsAdapter = new ViolationAdapter(violations);
             recyclerView.setAdapter(violationsAdapter);
-
-            userViolationsReference = FirebaseDatabase.getInstance().getReference("violations/" + FirebaseAuth.getInstance().getCurrentUser().getUid());
-            userViolationsReference.addValueEventListener(new ValueEventListener() {
+            violationStore.execute(new ViolationStore.Operation<Map<String, Violation>>() {
                 @Override
-                public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
-                    violations.clear();
-                    for (DataSnapshot violation : dataSnapshot.getChildren()) {
-                        violations.add(0, violation.getValue(Violation.class));
-                    }
-                    refreshViolations();
+                public Map<String, Violation> run(ViolationStore store) {
+                    return store.query(null, userId);
                 }
-
+            }, new ViolationStore.Callback<Map<String, Violation>>() {
                 @Override
-                public void onCancelled(@NonNull DatabaseError databaseError) {
-                    Log.i("message", "Failed to retrieve user violations. Error: " + databaseError.toException());
-                    violations.clear();
-                    refreshViolations();
-                    Toast.makeText(getApplicationContext(), "Failed to retrieve user violations, check log file for more information.", Toast.LENGTH_SHORT).show();
+                public void onResult(Map<String, Violation> storedViolations) {
+                    if (isFinishing()) {
+                        return;
+                    }
+                    int position = violations.size();
+                    Set<String> syncedKeys = new HashSet<>(violationKeys);
+                    for (Map.Entry<String, Violation> entry : storedViolations.entrySet()) {
+                        if (!syncedKeys.contains(entry.getKey())) {
+                            violations.add(position, entry.getValue());
+                            violationKeys.add(position, entry.getKey());
+                        }
+                    }
+                    violationsAdapter.notifyDataSetChanged();
+                    refreshTitle();
                 }
             });
+
+            violationSync = new ViolationSync(violationStore, userId, this);
             Log.i("message","UserViolationsListInit method completed successfully.");
         } catch (Exception e) {
             e.printStackTrace();
@@ -92,34 +110,76 @@ public class UserViolationsListActivity extends AppCompatActivity implements Int
         }
     }
 
-    // Application listens to internet connectivity status.
-    // When internet provider is disabled, user is informed via a message box.
+    // User's violations are delta synced, starting from the last synced violation.
+    // Violations list is refreshed in a live manner.
+    @Override
+    public void onSync() {
+        Log.i("message","OnSync method started.");
+        try {
+            findViewById(R.id.recyclerView).setVisibility(View.VISIBLE);
+            refreshTitle();
+            violationSync.start(true);
+            Log.i("message","OnSync method completed successfully.");
+        } catch (Exception e) {
+            e.printStackTrace();
+            Log.i("message","Exception during OnSync method:" + e.getMessage());
+            Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // When internet provider is disabled, sync is stopped
+    // and user is informed via a message box.
     @Override
-    public void onInternetConnectivityChanged(boolean isConnected) {
-        Log.i("message","OnInternetConnectivityChanged method started.");
+    public void onOffline() {
+        Log.i("message","OnOffline method started.");
         try {
-            if (isConnected) {
-                findViewById(R.id.recyclerView).setVisibility(View.VISIBLE);
-                userViolationsListInit();
-            } else {
-                findViewById(R.id.recyclerView).setVisibility(View.INVISIBLE);
-                ((TextView) findViewById(R.id.titleView)).setText(R.string.internet_provider_disabled);
-            }
-            Log.i("message","OnInternetConnectivityChanged method completed successfully.");
+            violationSync.stop();
+            findViewById(R.id.recyclerView).setVisibility(View.INVISIBLE);
+            ((TextView) findViewById(R.id.titleView)).setText(R.string.internet_provider_disabled);
+            Log.i("message","OnOffline method completed successfully.");
         } catch (Exception e) {
             e.printStackTrace();
-            Log.i("message","Exception during OnInternetConnectivityChanged method:" + e.getMessage());
+            Log.i("message","Exception during OnOffline method:" + e.getMessage());
             Toast.makeText(this, "Exception occurred, check log file for more information.", Toast.LENGTH_SHORT).show();
         }
     }
 
-    // Refreshes Activity displayed list.
-    private void refreshViolations() {
+    // On synced violation, it is added on top of the list, or replaced if already listed.
+    @Override
+    public void onViolationSynced(String key, String userId, Violation violation) {
+        int position = violationKeys.indexOf(key);
+        if (position != -1) {
+            violations.set(position, violation);
+            violationsAdapter.notifyItemChanged(position);
+        } else {
+            violations.add(0, violation);
+            violationKeys.add(0, key);
+            violationsAdapter.notifyItemInserted(0);
+            refreshTitle();
+        }
+    }
+
+    @Override
+    public void onViolationRemoved(String key) {
+        int position = violationKeys.indexOf(key);
+        if (position != -1) {
+            violations.remove(position);
+            violationKeys.remove(position);
+            violationsAdapter.notifyItemRemoved(position);
+            refreshTitle();
+        }
+    }
+
+    // User's history is always synced completely.
+    @Override
+    public void onHistorySynced() {}
+
+    // Refreshes Activity title, with the violations count.
+    private void refreshTitle() {
         if (!violations.isEmpty()) {
             ((TextView) findViewById(R.id.titleView)).setText("Violations (" + violations.size() + "): ");
         } else {
             ((TextView) findViewById(R.id.titleView)).setText(R.string.no_violations_message);
         }
-        violationsAdapter.notifyDataSetChanged();
     }
-}
\ No newline at end of file
+}
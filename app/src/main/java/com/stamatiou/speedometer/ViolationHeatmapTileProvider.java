@@ -0,0 +1,326 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Heatmap Tile Provider used by the application,
+// to rasterize violations density into Google Map tile overlays.
+// Each violation is weighted by its speed over the speed limit.
+// Violations are aggregated into a pyramid of density bins of 8x8 pixels,
+// one level per zoom level up to the base zoom level, so rendering a tile
+// reads only its own and neighbouring bins, independently of the number
+// of violations. Each violation is projected once, to its base level bin,
+// and coarser levels are derived by shifting its bin coordinates. Tiles
+// deeper than the base zoom level are interpolated from the base level.
+// Bins are smoothed and interpolated into a color gradient.
+// The pyramid is built once, when violations are replaced, on the caller's
+// thread, so it is built off the main thread and the snapshot is swapped in.
+// Afterwards, synced, removed and expired violations update only their own
+// bins of each level, and cached tiles are invalidated.
+// Tiles are requested by the map on background threads, and rendered tiles
+// are cached until violations change.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.speedometer;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.LruCache;
+
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+import com.stamatiou.violation.Violation;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ViolationHeatmapTileProvider implements TileProvider {
+
+    private final static int TILE_SIZE = 256;
+    private final static int BIN_SIZE = 8; // Density bin size, in pixels.
+    private final static int BINS = TILE_SIZE / BIN_SIZE; // Density bins per tile side.
+    private final static int BASE_ZOOM = 16; // Deepest aggregated zoom level, with bins of about 20 meters.
+    private final static int CACHED_TILES = 128;
+    private final static float[] KERNEL = {1f / 16, 2f / 16, 1f / 16,
+                                           2f / 16, 4f / 16, 2f / 16,
+                                           1f / 16, 2f / 16, 1f / 16};
+    private final static int[] GRADIENT = gradient();
+
+    // A violation projected to its base level bin, with its weight.
+    private static class Point {
+
+        private final long binX;
+        private final long binY;
+        private final float weight;
+
+        private Point(long binX, long binY, float weight) {
+            this.binX = binX;
+            this.binY = binY;
+            this.weight = weight;
+        }
+    }
+
+    // A density bin, with its violations count, so emptied bins are dropped.
+    private static class Bin {
+
+        private int count;
+        private float weight;
+    }
+
+    // Density bins of a zoom level, keyed by their global bin coordinates,
+    // along with the violations count of each tile.
+    // Maximum is recomputed lazily, only when its bin is decreased.
+    private static class Density {
+
+        private final Map<Long, Bin> bins = new HashMap<>();
+        private final Map<Long, Integer> tiles = new HashMap<>();
+        private float max;
+        private Boolean maxStale = false;
+
+        private void add(long binKey, long tileKey, float weight) {
+            Bin bin = bins.get(binKey);
+            if (bin == null) {
+                bin = new Bin();
+                bins.put(binKey, bin);
+            }
+            bin.count++;
+            bin.weight += weight;
+            max = Math.max(max, bin.weight);
+            Integer count = tiles.get(tileKey);
+            tiles.put(tileKey, count == null ? 1 : count + 1);
+        }
+
+        private void remove(long binKey, long tileKey, float weight) {
+            Bin bin = bins.get(binKey);
+            if (bin == null) {
+                return;
+            }
+            if (bin.weight >= max) {
+                maxStale = true;
+            }
+            if (--bin.count == 0) {
+                bins.remove(binKey);
+            } else {
+                bin.weight -= weight;
+            }
+            Integer count = tiles.get(tileKey);
+            if (count == null || count <= 1) {
+                tiles.remove(tileKey);
+            } else {
+                tiles.put(tileKey, count - 1);
+            }
+        }
+
+        private float max() {
+            if (maxStale) {
+                max = 0f;
+                for (Bin bin : bins.values()) {
+                    max = Math.max(max, bin.weight);
+                }
+                maxStale = false;
+            }
+            return max;
+        }
+    }
+
+    // Presented violations, with their density pyramid and rendered tiles.
+    // Guarded by its own lock, as violations are updated on the main thread,
+    // while tiles are rendered on the map's background threads.
+    private static class Snapshot {
+
+        private final Float speedLimit;
+        private final Map<String, Point> points = new HashMap<>();
+        private final Density[] levels = new Density[BASE_ZOOM + 1];
+        private final LruCache<String, Tile> tiles = new LruCache<>(CACHED_TILES);
+        private long version;
+
+        private Snapshot(Float speedLimit) {
+            this.speedLimit = speedLimit;
+            for (int level = 0; level <= BASE_ZOOM; level++) {
+                levels[level] = new Density();
+            }
+        }
+
+        private void put(String key, Violation violation) {
+            remove(key);
+            double sin = Math.sin(Math.toRadians(violation.getLatitude()));
+            double x = (violation.getLongitude() + 180) / 360;
+            double y = Math.min(Math.max(0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI), 0), 1);
+            long scale = (1L << BASE_ZOOM) * BINS;
+            float speed = violation.getSpeed() == null ? 0f : violation.getSpeed();
+            Point point = new Point(Math.min((long) (x * scale), scale - 1), Math.min((long) (y * scale), scale - 1),
+                                    speedLimit == null ? 1f : Math.max(speed - speedLimit, 1f));
+            points.put(key, point);
+            for (int level = 0; level <= BASE_ZOOM; level++) {
+                long binX = point.binX >> (BASE_ZOOM - level);
+                long binY = point.binY >> (BASE_ZOOM - level);
+                levels[level].add(binX << 32 | binY, (binX / BINS) << 32 | (binY / BINS), point.weight);
+            }
+        }
+
+        private void remove(String key) {
+            Point point = points.remove(key);
+            if (point == null) {
+                return;
+            }
+            for (int level = 0; level <= BASE_ZOOM; level++) {
+                long binX = point.binX >> (BASE_ZOOM - level);
+                long binY = point.binY >> (BASE_ZOOM - level);
+                levels[level].remove(binX << 32 | binY, (binX / BINS) << 32 | (binY / BINS), point.weight);
+            }
+        }
+
+        // Drops rendered tiles, so a tile rendered before the change is not cached.
+        private void invalidate() {
+            version++;
+            tiles.evictAll();
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(null);
+
+    // Replaces the presented violations, building their density pyramid.
+    // Safe to call from any thread, while the map requests tiles, and expensive,
+    // so it is called off the main thread.
+    // Violations are weighted by their speed over the speed limit, when known.
+    public void setViolations(Map<String, Violation> violations, Float speedLimit) {
+        Snapshot next = new Snapshot(speedLimit);
+        for (Map.Entry<String, Violation> entry : violations.entrySet()) {
+            next.put(entry.getKey(), entry.getValue());
+        }
+        snapshot = next;
+    }
+
+    // Adds or replaces a presented violation, updating only its bins.
+    public void put(String key, Violation violation) {
+        Snapshot current = snapshot;
+        synchronized (current) {
+            current.put(key, violation);
+            current.invalidate();
+        }
+    }
+
+    // Removes a presented violation, updating only its bins.
+    public void remove(String key) {
+        Snapshot current = snapshot;
+        synchronized (current) {
+            if (current.points.containsKey(key)) {
+                current.remove(key);
+                current.invalidate();
+            }
+        }
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        Snapshot current = snapshot;
+        String key = zoom + "/" + x + "/" + y;
+        Tile tile = current.tiles.get(key);
+        if (tile == null) {
+            long version;
+            synchronized (current) {
+                version = current.version;
+            }
+            tile = render(current, x, y, zoom);
+            synchronized (current) {
+                if (current.version == version) {
+                    current.tiles.put(key, tile);
+                }
+            }
+        }
+        return tile;
+    }
+
+    // Renders a tile from the smoothed density bins of its zoom level, using bilinear interpolation.
+    // Tiles deeper than the base zoom level span a fraction of a base level tile, so their
+    // level bins are wider than 8 pixels.
+    private static Tile render(Snapshot snapshot, int x, int y, int zoom) {
+        int level = Math.min(zoom, BASE_ZOOM);
+        int shift = zoom - level;
+        double binSize = BIN_SIZE << shift; // Level bin size, in tile pixels.
+        double originX = (double) x * BINS / (1 << shift);
+        double originY = (double) y * BINS / (1 << shift);
+        // Level bins of the pixel centers, with a one bin border for interpolation.
+        long startX = (long) Math.floor(originX + 0.5 / binSize - 0.5);
+        long startY = (long) Math.floor(originY + 0.5 / binSize - 0.5);
+        int smoothSide = (int) Math.max((long) Math.floor(originX + (TILE_SIZE - 0.5) / binSize - 0.5) + 2 - startX,
+                                        (long) Math.floor(originY + (TILE_SIZE - 0.5) / binSize - 0.5) + 2 - startY);
+        // Raw bins with a two bins border, smoothed bins with a one bin border.
+        int rawSide = smoothSide + 2;
+        float[] raw = new float[rawSide * rawSide];
+        float max;
+        synchronized (snapshot) {
+            Density density = snapshot.levels[level];
+            if (!hasNeighbourBins(density, x >> shift, y >> shift)) {
+                return NO_TILE;
+            }
+            for (int j = 0; j < rawSide; j++) {
+                for (int i = 0; i < rawSide; i++) {
+                    Bin bin = density.bins.get((startX + i - 1) << 32 | (startY + j - 1));
+                    raw[j * rawSide + i] = bin == null ? 0f : bin.weight;
+                }
+            }
+            max = density.max();
+        }
+        float[] smooth = new float[smoothSide * smoothSide];
+        for (int j = 0; j < smoothSide; j++) {
+            for (int i = 0; i < smoothSide; i++) {
+                float sum = 0f;
+                for (int k = 0; k < 9; k++) {
+                    sum += KERNEL[k] * raw[(j + k / 3) * rawSide + i + k % 3];
+                }
+                smooth[j * smoothSide + i] = sum;
+            }
+        }
+        double logMax = Math.log1p(max);
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int py = 0; py < TILE_SIZE; py++) {
+            double binY = originY + (py + 0.5) / binSize - 0.5;
+            long j = (long) Math.floor(binY);
+            float fy = (float) (binY - j);
+            for (int px = 0; px < TILE_SIZE; px++) {
+                double binX = originX + (px + 0.5) / binSize - 0.5;
+                long i = (long) Math.floor(binX);
+                float fx = (float) (binX - i);
+                int index = (int) ((j - startY) * smoothSide + i - startX);
+                float value = (smooth[index] * (1 - fx) + smooth[index + 1] * fx) * (1 - fy)
+                              + (smooth[index + smoothSide] * (1 - fx) + smooth[index + smoothSide + 1] * fx) * fy;
+                if (value > 0f) {
+                    int gradientLevel = (int) (Math.log1p(value) / logMax * (GRADIENT.length - 1));
+                    pixels[py * TILE_SIZE + px] = GRADIENT[Math.min(gradientLevel, GRADIENT.length - 1)];
+                }
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(pixels, TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        bitmap.recycle();
+        return new Tile(TILE_SIZE, TILE_SIZE, stream.toByteArray());
+    }
+
+    // Checks if the level tile or its neighbours contain density bins.
+    private static Boolean hasNeighbourBins(Density density, int x, int y) {
+        for (long j = y - 1; j <= y + 1; j++) {
+            for (long i = x - 1; i <= x + 1; i++) {
+                if (density.tiles.containsKey(i << 32 | j)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Returns the density color gradient: transparent green, through yellow, to opaque red.
+    private static int[] gradient() {
+        int[] colors = new int[256];
+        for (int i = 0; i < colors.length; i++) {
+            float t = i / 255f;
+            int alpha = (int) (Math.min(0.3f + t, 0.85f) * 255);
+            int red = t < 0.5f ? (int) (t * 2 * 255) : 255;
+            int green = t < 0.5f ? 255 : (int) ((1 - (t - 0.5f) * 2) * 255);
+            colors[i] = Color.argb(alpha, red, green, 0);
+        }
+        return colors;
+    }
+}
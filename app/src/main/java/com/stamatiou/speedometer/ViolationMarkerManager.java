@@ -0,0 +1,139 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Marker Manager used by the application, to
+// present violations in a Google Map with minimal allocations.
+// Hidden markers are kept in a pool and reused, by updating their
+// position, instead of being removed and added again.
+// Marker icons are banded by speed, and each band's icon is created once.
+// Marker title and snippet are formatted only when the marker is clicked,
+// right before its info window is shown.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.speedometer;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+import com.stamatiou.violation.Violation;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+public class ViolationMarkerManager implements GoogleMap.OnMarkerClickListener {
+
+    private final static int MAX_POOL_SIZE = 1000; // Hidden markers kept for reuse.
+    private final static float[] SPEED_BANDS = {80f, 100f, 120f}; // Icon band lower bounds, in km/h.
+    private final static float[] BAND_HUES = {BitmapDescriptorFactory.HUE_YELLOW, BitmapDescriptorFactory.HUE_ORANGE,
+                                              BitmapDescriptorFactory.HUE_RED, BitmapDescriptorFactory.HUE_VIOLET};
+
+    private final GoogleMap map;
+    private final Map<String, Marker> markers = new HashMap<>();
+    private final ArrayDeque<Marker> pool = new ArrayDeque<>();
+    private final BitmapDescriptor[] icons = new BitmapDescriptor[BAND_HUES.length];
+    private final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+
+    public ViolationMarkerManager(GoogleMap map) {
+        this.map = map;
+        map.setOnMarkerClickListener(this);
+    }
+
+    // Presents a violation, reusing its current marker or a pooled one.
+    public void show(String key, Violation violation) {
+        Marker marker = markers.get(key);
+        if (marker == null) {
+            marker = pool.poll();
+        }
+        if (marker == null) {
+            marker = map.addMarker(new MarkerOptions().position(new LatLng(violation.getLatitude(), violation.getLongitude()))
+                                                      .icon(icon(band(violation))));
+        } else {
+            Violation previous = (Violation) marker.getTag();
+            if (previous == null || band(previous) != band(violation)) {
+                marker.setIcon(icon(band(violation)));
+            }
+            if (previous == null || !previous.getLatitude().equals(violation.getLatitude()) || !previous.getLongitude().equals(violation.getLongitude())) {
+                marker.setPosition(new LatLng(violation.getLatitude(), violation.getLongitude()));
+            }
+            if (marker.isInfoWindowShown()) {
+                describe(marker, violation);
+                marker.showInfoWindow();
+            }
+            marker.setVisible(true);
+        }
+        marker.setTag(violation);
+        markers.put(key, marker);
+    }
+
+    // Hides a violation's marker, returning it to the pool.
+    public void hide(String key) {
+        Marker marker = markers.remove(key);
+        if (marker != null) {
+            recycle(marker);
+        }
+    }
+
+    // Hides all markers except the given violations' ones, returning them to the pool.
+    // Kept markers are updated in place by the following shows.
+    public void retain(Set<String> keys) {
+        Iterator<Map.Entry<String, Marker>> iterator = markers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Marker> entry = iterator.next();
+            if (!keys.contains(entry.getKey())) {
+                recycle(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    // Formats the clicked marker's title and snippet, so its default info window presents them.
+    @Override
+    public boolean onMarkerClick(Marker marker) {
+        Violation violation = (Violation) marker.getTag();
+        if (violation != null) {
+            describe(marker, violation);
+        }
+        return false;
+    }
+
+    private void recycle(Marker marker) {
+        marker.hideInfoWindow();
+        if (pool.size() < MAX_POOL_SIZE) {
+            marker.setVisible(false);
+            pool.push(marker);
+        } else {
+            marker.remove();
+        }
+    }
+
+    private void describe(Marker marker, Violation violation) {
+        marker.setTitle(dateFormatter.format(violation.getTimestamp()));
+        marker.setSnippet("Speed: " + String.format("%.2f", violation.getSpeed()) + " km/h");
+    }
+
+    // Returns the band icon, creating it on first use.
+    private BitmapDescriptor icon(int band) {
+        if (icons[band] == null) {
+            icons[band] = BitmapDescriptorFactory.defaultMarker(BAND_HUES[band]);
+        }
+        return icons[band];
+    }
+
+    private static int band(Violation violation) {
+        float speed = violation.getSpeed() == null ? 0f : violation.getSpeed();
+        int band = 0;
+        while (band < SPEED_BANDS.length && speed >= SPEED_BANDS[band]) {
+            band++;
+        }
+        return band;
+    }
+}
@@ -0,0 +1,136 @@
+// -------------------------------------------------------------
+//
+// This is the Android Connectivity Source used by the Sync Scheduler.
+// Network changes are received through network callbacks, or through
+// connectivity broadcasts on devices older than Lollipop.
+// Capability changes that affect neither connection nor metering, like
+// signal strength or bandwidth updates, are ignored.
+// Charging changes are received through power broadcasts.
+// Listener is always notified on the main thread.
+// Network state permission is required.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.sync;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.core.net.ConnectivityManagerCompat;
+
+public class AndroidConnectivitySource implements ConnectivitySource {
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Listener listener;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private int networkState = -1; // Last connection and metering state of network callbacks, -1 if unknown.
+    private final Runnable notification = new Runnable() {
+        @Override
+        public void run() {
+            if (listener != null) {
+                listener.onConnectivityChanged();
+            }
+        }
+    };
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            notifyChanged();
+        }
+    };
+
+    public AndroidConnectivitySource(Context context) {
+        this.context = context.getApplicationContext();
+        this.connectivityManager = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public void register(Listener listener) {
+        this.listener = listener;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    networkState = -1;
+                    notifyChanged();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    networkState = -1;
+                    notifyChanged();
+                }
+
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                    int state = (networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) ? 1 : 0)
+                                | (networkCapabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) ? 2 : 0);
+                    if (state != networkState) {
+                        networkState = state;
+                        notifyChanged();
+                    }
+                }
+            };
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                connectivityManager.registerDefaultNetworkCallback(networkCallback);
+            } else {
+                connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET).build(), networkCallback);
+            }
+        } else {
+            filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        }
+        context.registerReceiver(receiver, filter);
+    }
+
+    @Override
+    public void unregister() {
+        if (networkCallback != null) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+            networkState = -1;
+        }
+        context.unregisterReceiver(receiver);
+        mainHandler.removeCallbacks(notification);
+        listener = null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        NetworkInfo networkInfo = connectivityManager == null ? null : connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    @Override
+    public boolean isMetered() {
+        return connectivityManager == null || ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
+    }
+
+    @Override
+    public boolean isCharging() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    // Network callbacks are delivered on a binder thread, so listener is notified on the main thread.
+    private void notifyChanged() {
+        mainHandler.post(notification);
+    }
+}
@@ -0,0 +1,29 @@
+// -------------------------------------------------------------
+//
+// This is the Connectivity Source used by the Sync Scheduler.
+// It reports network and charging conditions and notifies its
+// listener when they change. Abstracted from the Android framework,
+// so scheduling decisions can be tested with a fake source.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.sync;
+
+public interface ConnectivitySource {
+
+    interface Listener {
+        void onConnectivityChanged();
+    }
+
+    void register(Listener listener);
+
+    void unregister();
+
+    boolean isConnected();
+
+    boolean isMetered();
+
+    boolean isCharging();
+}
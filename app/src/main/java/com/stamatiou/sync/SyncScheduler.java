@@ -0,0 +1,153 @@
+// -------------------------------------------------------------
+//
+// This is the Sync Scheduler used by the application, to run sync
+// tasks according to network conditions.
+// Connectivity changes are coalesced: tasks are evaluated only after
+// conditions stay unchanged for the coalesce delay, so reconnect storms
+// result in a single sync. A storm that never settles is evaluated once
+// the maximum coalesce delay from its first change has elapsed.
+// Each task runs once per online period and is responsible for resuming
+// from its last synced cursor. When connection is lost, tasks are informed,
+// so they can release their listeners until the next sync.
+// Bulk tasks only run on unmetered networks or while charging.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.sync;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class SyncScheduler implements ConnectivitySource.Listener {
+
+    public enum Constraint { ANY_NETWORK, UNMETERED_OR_CHARGING }
+
+    public interface SyncTask {
+
+        // Invoked when task conditions are met. Tasks resume from their last synced cursor.
+        void onSync();
+
+        // Invoked when connection is lost.
+        void onOffline();
+    }
+
+    // Delayed execution abstraction, backed by a Handler on Android.
+    public interface Delayer {
+
+        void postDelayed(Runnable runnable, long delay);
+
+        void cancel(Runnable runnable);
+    }
+
+    public final static long COALESCE_DELAY = 2000; // Connectivity changes coalescing delay, in milliseconds.
+    public final static long MAX_COALESCE_DELAY = 10000; // Maximum delay of an evaluation since the first coalesced change, in milliseconds.
+
+    private final ConnectivitySource connectivitySource;
+    private final Delayer delayer;
+    private final Map<SyncTask, Constraint> tasks = new LinkedHashMap<>();
+    private final Set<SyncTask> syncedTasks = new HashSet<>();
+    private boolean online;
+    private boolean coalescing;
+    private final Runnable evaluation = new Runnable() {
+        @Override
+        public void run() {
+            coalesced();
+        }
+    };
+    private final Runnable deadline = new Runnable() {
+        @Override
+        public void run() {
+            coalesced();
+        }
+    };
+
+    public SyncScheduler(ConnectivitySource connectivitySource, Delayer delayer) {
+        this.connectivitySource = connectivitySource;
+        this.delayer = delayer;
+        this.online = connectivitySource.isConnected();
+        connectivitySource.register(this);
+    }
+
+    // Registers a task, which is immediately synced if its conditions are met,
+    // or informed that connection is not available.
+    public void register(SyncTask task, Constraint constraint) {
+        tasks.put(task, constraint);
+        if (!online) {
+            task.onOffline();
+        } else if (isAllowed(constraint)) {
+            syncedTasks.add(task);
+            task.onSync();
+        }
+    }
+
+    public void unregister(SyncTask task) {
+        tasks.remove(task);
+        syncedTasks.remove(task);
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    // Checks whether bulk sync is currently allowed.
+    public boolean isBulkAllowed() {
+        return isAllowed(Constraint.UNMETERED_OR_CHARGING);
+    }
+
+    // Each connectivity change postpones the evaluation, coalescing change storms,
+    // while the first change of a storm sets its deadline, which is not postponed.
+    @Override
+    public void onConnectivityChanged() {
+        delayer.cancel(evaluation);
+        delayer.postDelayed(evaluation, COALESCE_DELAY);
+        if (!coalescing) {
+            coalescing = true;
+            delayer.postDelayed(deadline, MAX_COALESCE_DELAY);
+        }
+    }
+
+    // Evaluates conditions once per storm, either when it settles or on its deadline.
+    private void coalesced() {
+        if (!coalescing) {
+            return;
+        }
+        coalescing = false;
+        delayer.cancel(evaluation);
+        delayer.cancel(deadline);
+        evaluate();
+    }
+
+    // Evaluates current conditions.
+    // Going offline informs all tasks, while being online syncs
+    // the tasks that have not been synced in the current online period.
+    private void evaluate() {
+        if (!connectivitySource.isConnected()) {
+            if (online) {
+                online = false;
+                syncedTasks.clear();
+                for (SyncTask task : tasks.keySet().toArray(new SyncTask[0])) {
+                    task.onOffline();
+                }
+            }
+            return;
+        }
+        online = true;
+        for (Map.Entry<SyncTask, Constraint> entry : new LinkedHashMap<>(tasks).entrySet()) {
+            if (!syncedTasks.contains(entry.getKey()) && isAllowed(entry.getValue())) {
+                syncedTasks.add(entry.getKey());
+                entry.getKey().onSync();
+            }
+        }
+    }
+
+    private boolean isAllowed(Constraint constraint) {
+        if (!online) {
+            return false;
+        }
+        return constraint == Constraint.ANY_NETWORK || !connectivitySource.isMetered() || connectivitySource.isCharging();
+    }
+}
@@ -0,0 +1,157 @@
+// -------------------------------------------------------------
+//
+// This is the Driver Statistics Structure used by the application.
+// Statistics data: User, violations count, worst speed and daily
+// violations of the last 7 days.
+// Statistics are maintained incrementally by the Violation Aggregator:
+//      1. Count is a streaming counter.
+//      2. Speeds are rounded to 0.1 km/h and counted per rounded speed, in
+//      fixed-size speed buckets, each one with its worst speed. A bucket holds
+//      at most 100 rounded speeds, regardless of violations count (the top one
+//      holds the few speeds above 300 km/h too), so removing the worst speed
+//      rescans a bounded number of entries.
+//      3. Daily violations are kept in a ring of day buckets, each one
+//      reset when reused by a newer day.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DriverStatistics {
+
+    public final static int TREND_DAYS = 7;
+    public final static long DAY_LENGTH = 86400000L; // In milliseconds.
+    final static float SPEED_BUCKET_SIZE = 10f; // Speed bucket size, in km/h.
+    final static int SPEED_BUCKETS = 30;
+    final static float SPEED_RESOLUTION = 10f; // Rounded speeds per km/h.
+
+    private final String userId;
+    private int count;
+    private float worstSpeed;
+    private final int[] bucketCounts = new int[SPEED_BUCKETS];
+    private final Map<Integer, Integer>[] bucketSpeedCounts = newSpeedCounts(); // Violations per rounded speed.
+    private final int[] bucketWorstSpeeds = new int[SPEED_BUCKETS]; // Rounded speeds.
+    private final int[] dayCounts = new int[TREND_DAYS];
+    private final long[] days = new long[TREND_DAYS];
+
+    DriverStatistics(String userId) {
+        this.userId = userId;
+        for (int i = 0; i < TREND_DAYS; i++) {
+            days[i] = -1;
+        }
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getWorstSpeed() {
+        return worstSpeed;
+    }
+
+    // Returns the daily violations of the last 7 days, oldest first.
+    public int[] getTrend(long now) {
+        long today = now / DAY_LENGTH;
+        int[] trend = new int[TREND_DAYS];
+        for (int i = 0; i < TREND_DAYS; i++) {
+            long day = today - TREND_DAYS + 1 + i;
+            int slot = (int) (day % TREND_DAYS);
+            trend[i] = days[slot] == day ? dayCounts[slot] : 0;
+        }
+        return trend;
+    }
+
+    // Returns the violations of the last 7 days.
+    public int getWeekCount(long now) {
+        int sum = 0;
+        for (int dayCount : getTrend(now)) {
+            sum += dayCount;
+        }
+        return sum;
+    }
+
+    void add(float speed, long day) {
+        count++;
+        int bucket = speedBucket(speed);
+        int roundedSpeed = roundedSpeed(speed);
+        Map<Integer, Integer> speedCounts = bucketSpeedCounts[bucket];
+        if (speedCounts == null) {
+            speedCounts = new HashMap<>();
+            bucketSpeedCounts[bucket] = speedCounts;
+        }
+        Integer speedCount = speedCounts.get(roundedSpeed);
+        speedCounts.put(roundedSpeed, speedCount == null ? 1 : speedCount + 1);
+        bucketCounts[bucket]++;
+        bucketWorstSpeeds[bucket] = Math.max(bucketWorstSpeeds[bucket], roundedSpeed);
+        worstSpeed = Math.max(worstSpeed, roundedSpeed / SPEED_RESOLUTION);
+        int slot = (int) (day % TREND_DAYS);
+        if (days[slot] < day) {
+            days[slot] = day;
+            dayCounts[slot] = 0;
+        }
+        if (days[slot] == day) {
+            dayCounts[slot]++;
+        }
+    }
+
+    // When the last violation of a bucket's worst speed is removed, only the
+    // rounded speeds of that bucket are rescanned.
+    // On worst speed removal, worst speed falls back to the worst speed
+    // of the highest non-empty bucket.
+    void remove(float speed, long day) {
+        count--;
+        int bucket = speedBucket(speed);
+        int roundedSpeed = roundedSpeed(speed);
+        Map<Integer, Integer> speedCounts = bucketSpeedCounts[bucket];
+        Integer speedCount = speedCounts == null ? null : speedCounts.get(roundedSpeed);
+        if (speedCount != null) {
+            bucketCounts[bucket]--;
+            if (speedCount > 1) {
+                speedCounts.put(roundedSpeed, speedCount - 1);
+            } else {
+                speedCounts.remove(roundedSpeed);
+                if (roundedSpeed >= bucketWorstSpeeds[bucket]) {
+                    bucketWorstSpeeds[bucket] = 0;
+                    for (Integer bucketSpeed : speedCounts.keySet()) {
+                        bucketWorstSpeeds[bucket] = Math.max(bucketWorstSpeeds[bucket], bucketSpeed);
+                    }
+                }
+            }
+        }
+        if (roundedSpeed / SPEED_RESOLUTION >= worstSpeed) {
+            worstSpeed = 0f;
+            for (int i = SPEED_BUCKETS - 1; i >= 0; i--) {
+                if (bucketCounts[i] > 0) {
+                    worstSpeed = bucketWorstSpeeds[i] / SPEED_RESOLUTION;
+                    break;
+                }
+            }
+        }
+        int slot = (int) (day % TREND_DAYS);
+        if (days[slot] == day) {
+            dayCounts[slot]--;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Integer, Integer>[] newSpeedCounts() {
+        return new Map[SPEED_BUCKETS];
+    }
+
+    private static int roundedSpeed(float speed) {
+        return Math.round(speed * SPEED_RESOLUTION);
+    }
+
+    private static int speedBucket(float speed) {
+        return Math.min(Math.max((int) (speed / SPEED_BUCKET_SIZE), 0), SPEED_BUCKETS - 1);
+    }
+}
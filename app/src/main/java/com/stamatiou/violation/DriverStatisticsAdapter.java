@@ -0,0 +1,68 @@
+// -------------------------------------------------------------
+//
+// This is the Driver Statistics Adapter used by the application, to
+// populate the corresponding Recycler View in FleetDashboard Activity.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.stamatiou.speedometer.R;
+
+import java.util.List;
+
+public class DriverStatisticsAdapter extends RecyclerView.Adapter<DriverStatisticsAdapter.DriverViewHolder> {
+
+    private List<DriverStatistics> drivers;
+
+    public static class DriverViewHolder extends RecyclerView.ViewHolder {
+
+        TextView driverView, countView, worstSpeedView, trendView;
+
+        public DriverViewHolder(View itemView) {
+            super(itemView);
+            this.driverView = itemView.findViewById(R.id.driverView);
+            this.countView = itemView.findViewById(R.id.countView);
+            this.worstSpeedView = itemView.findViewById(R.id.worstSpeedView);
+            this.trendView = itemView.findViewById(R.id.trendView);
+        }
+    }
+
+    public DriverStatisticsAdapter(List<DriverStatistics> drivers) {
+        this.drivers = drivers;
+    }
+
+    @Override
+    public DriverViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.driver_card_layout, parent, false);
+        return new DriverViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(DriverViewHolder holder, int position) {
+        DriverStatistics driver = drivers.get(position);
+        long now = System.currentTimeMillis();
+        StringBuilder trend = new StringBuilder("Last 7 days (" + driver.getWeekCount(now) + "):");
+        for (int dayCount : driver.getTrend(now)) {
+            trend.append(' ').append(dayCount);
+        }
+        holder.driverView.setText("Driver: " + driver.getUserId());
+        holder.countView.setText("Violations: " + driver.getCount());
+        holder.worstSpeedView.setText("Worst speed: " + String.format("%.2f", driver.getWorstSpeed()) + " km/h");
+        holder.trendView.setText(trend.toString());
+    }
+
+    @Override
+    public int getItemCount() {
+        return drivers.size();
+    }
+}
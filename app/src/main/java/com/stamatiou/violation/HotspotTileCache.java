@@ -0,0 +1,158 @@
+// -------------------------------------------------------------
+//
+// This is the Hotspot Tile Cache used by the application, to warn
+// users before they enter an area where other drivers keep speeding.
+// The world is split into fixed size tiles and every recorded violation
+// increases the counter of its tile, under the Firebase hotspots node,
+// as part of the violation's fan-out write. Counters of violations written
+// before are backfilled by the Violation Index Migrator.
+// Tiles around and ahead of user's position are prefetched in the background,
+// following user's heading and speed, so each location fix is checked
+// against the in memory tile set in constant time, without network access.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import android.location.Location;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HotspotTileCache {
+
+    public final static String HOTSPOTS_PATH = "hotspots";
+    private final static double TILE_SIZE = 0.01; // Tile size in degrees, roughly 1 km.
+    private final static int TILE_RADIUS = 2; // Prefetched tiles around the prefetch center.
+    private final static int EVICTION_RADIUS = 4; // Tiles further than this from the prefetch center are dropped.
+    private final static int HOTSPOT_THRESHOLD = 5; // Violations required for a tile to be considered a hotspot.
+    private final static float LOOKAHEAD_SECONDS = 60; // Prefetch center is projected this far ahead.
+    private final static float WARNING_SECONDS = 20; // Hotspots are checked this far ahead.
+
+    private final DatabaseReference hotspotsReference;
+    private final Set<Long> hotspotTiles = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private long prefetchCenter = -1;
+
+    public HotspotTileCache() {
+        hotspotsReference = FirebaseDatabase.getInstance().getReference(HOTSPOTS_PATH);
+    }
+
+    // Returns the tile row of a latitude.
+    public static int tileRow(double latitude) {
+        return (int) Math.floor((latitude + 90) / TILE_SIZE);
+    }
+
+    // Returns the tile column of a longitude.
+    public static int tileColumn(double longitude) {
+        return (int) Math.floor((longitude + 180) / TILE_SIZE);
+    }
+
+    // Returns the Firebase key of a tile.
+    // Keys are zero padded, so tiles of the same row are ordered by column.
+    public static String tileKey(int row, int column) {
+        return String.format(Locale.US, "%05d_%05d", row, column);
+    }
+
+    // Returns the Firebase key of the tile containing a violation.
+    public static String tileKey(Violation violation) {
+        return tileKey(tileRow(violation.getLatitude()), tileColumn(violation.getLongitude()));
+    }
+
+    // On each location fix, the prefetch center is projected ahead of the user,
+    // based on their heading and speed. When the projected tile moves away
+    // from the last prefetch center, surrounding tiles are fetched again.
+    public void update(Location location) {
+        double[] projected = project(location, LOOKAHEAD_SECONDS);
+        int row = tileRow(projected[0]);
+        int column = tileColumn(projected[1]);
+        if (prefetchCenter != -1) {
+            int centerRow = (int) (prefetchCenter >> 32);
+            int centerColumn = (int) prefetchCenter;
+            if (Math.abs(row - centerRow) < TILE_RADIUS && Math.abs(column - centerColumn) < TILE_RADIUS) {
+                return;
+            }
+        }
+        prefetchCenter = pack(row, column);
+        evict(row, column);
+        prefetch(row, column);
+    }
+
+    // Checks whether user's current tile, or the tile they are heading to, is a hotspot.
+    // Only the in memory tile set is used, so no network access occurs.
+    public boolean isHotspotAhead(Location location) {
+        if (hotspotTiles.contains(pack(tileRow(location.getLatitude()), tileColumn(location.getLongitude())))) {
+            return true;
+        }
+        double[] projected = project(location, WARNING_SECONDS);
+        return hotspotTiles.contains(pack(tileRow(projected[0]), tileColumn(projected[1])));
+    }
+
+    // Fetches hotspot tiles around the given tile, one key range query per tile row.
+    private void prefetch(int row, int column) {
+        for (int r = row - TILE_RADIUS; r <= row + TILE_RADIUS; r++) {
+            hotspotsReference.orderByKey()
+                             .startAt(tileKey(r, column - TILE_RADIUS))
+                             .endAt(tileKey(r, column + TILE_RADIUS))
+                             .addListenerForSingleValueEvent(new ValueEventListener() {
+                                 @Override
+                                 public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                                     for (DataSnapshot tile : dataSnapshot.getChildren()) {
+                                         Long count = tile.getValue(Long.class);
+                                         if (count != null && count >= HOTSPOT_THRESHOLD) {
+                                             String[] key = tile.getKey().split("_");
+                                             hotspotTiles.add(pack(Integer.parseInt(key[0]), Integer.parseInt(key[1])));
+                                         }
+                                     }
+                                 }
+
+                                 @Override
+                                 public void onCancelled(@NonNull DatabaseError databaseError) {
+                                     Log.i("message", "Failed to prefetch hotspot tiles. Error: " + databaseError.toException());
+                                 }
+                             });
+        }
+    }
+
+    // Drops cached tiles far away from the given tile.
+    private void evict(int row, int column) {
+        Iterator<Long> iterator = hotspotTiles.iterator();
+        while (iterator.hasNext()) {
+            long tile = iterator.next();
+            if (Math.abs((int) (tile >> 32) - row) > EVICTION_RADIUS || Math.abs((int) tile - column) > EVICTION_RADIUS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Projects location ahead, using its bearing and speed for the given seconds.
+    // Returns the projected latitude and longitude.
+    private static double[] project(Location location, float seconds) {
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+        if (location.hasBearing() && location.getSpeed() > 0) {
+            double distance = location.getSpeed() * seconds;
+            double bearing = Math.toRadians(location.getBearing());
+            latitude += Math.toDegrees(distance * Math.cos(bearing) / 6371000);
+            longitude += Math.toDegrees(distance * Math.sin(bearing) / (6371000 * Math.cos(Math.toRadians(latitude))));
+        }
+        return new double[]{latitude, longitude};
+    }
+
+    private static long pack(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+}
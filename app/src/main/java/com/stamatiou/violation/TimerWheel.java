@@ -0,0 +1,80 @@
+// -------------------------------------------------------------
+//
+// This is the Timer Wheel used by the application, to expire items
+// after a deadline without scanning all of them.
+// Time is split into fixed length ticks, mapped to a circular array of slots.
+// Each item is placed in the slot of its deadline tick, so on each advance
+// only the slots of the elapsed ticks are visited.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class TimerWheel<T> {
+
+    private static class Entry<T> {
+
+        private final T item;
+        private final long deadline;
+
+        private Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickLength;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+
+    // Wheel must span the longest expected deadline, so tickLength * slotsCount
+    // should be greater than the expiration window. Longer deadlines are still
+    // handled, by keeping items in their slot for more than one rotation.
+    public TimerWheel(long tickLength, int slotsCount, long now) {
+        this.tickLength = tickLength;
+        this.slots = new ArrayList<>(slotsCount);
+        for (int i = 0; i < slotsCount; i++) {
+            slots.add(new ArrayList<Entry<T>>());
+        }
+        this.currentTick = now / tickLength;
+    }
+
+    // Schedules an item to expire at the given deadline.
+    // Items with an already elapsed deadline expire on next advance.
+    public void add(T item, long deadline) {
+        long tick = Math.max(deadline / tickLength, currentTick);
+        slots.get((int) (tick % slots.size())).add(new Entry<>(item, deadline));
+    }
+
+    // Advances the wheel to the given time and returns the expired items.
+    public List<T> advance(long now) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = now / tickLength;
+        long ticks = Math.min(targetTick - currentTick + 1, slots.size());
+        for (long tick = targetTick - ticks + 1; tick <= targetTick; tick++) {
+            Iterator<Entry<T>> iterator = slots.get((int) (tick % slots.size())).iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry.deadline <= now) {
+                    expired.add(entry.item);
+                    iterator.remove();
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, targetTick);
+        return expired;
+    }
+
+    // Removes all scheduled items.
+    public void clear() {
+        for (List<Entry<T>> slot : slots) {
+            slot.clear();
+        }
+    }
+}
@@ -2,6 +2,8 @@
 //
 // This is the Violation Structure used by the application.
 // Violation data: Latitude, Longitude, Speed and Timestamp.
+// Violation nodes and index entries carry extra children, like their
+// user or index marker, which are ignored when mapped.
 //
 // Author: Aggelos Stamatiou, July 2020
 //
@@ -9,8 +11,11 @@
 
 package com.stamatiou.violation;
 
+import com.google.firebase.database.IgnoreExtraProperties;
+
 import java.util.Date;
 
+@IgnoreExtraProperties
 public class Violation {
 
     private Double latitude;
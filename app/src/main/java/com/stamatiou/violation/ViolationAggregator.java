@@ -0,0 +1,81 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Aggregator used by the application, to maintain
+// live per-driver statistics from violation events.
+// Each added, changed or removed violation updates only its driver's
+// statistics, so statistics never require rescanning all violations.
+// Aggregated violations are remembered by key, so changed and removed
+// violations are subtracted from the statistics they were added to.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ViolationAggregator {
+
+    // Aggregated violation data, required for its removal.
+    private static class Entry {
+
+        private final DriverStatistics driver;
+        private final float speed;
+        private final long day;
+
+        private Entry(DriverStatistics driver, float speed, long day) {
+            this.driver = driver;
+            this.speed = speed;
+            this.day = day;
+        }
+    }
+
+    private final Map<String, DriverStatistics> drivers = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // Adds a violation to its driver's statistics, replacing it if already added.
+    public void add(String key, String userId, Violation violation) {
+        if (userId == null || violation == null) {
+            return;
+        }
+        remove(key);
+        DriverStatistics driver = drivers.get(userId);
+        if (driver == null) {
+            driver = new DriverStatistics(userId);
+            drivers.put(userId, driver);
+        }
+        float speed = violation.getSpeed() == null ? 0f : violation.getSpeed();
+        long day = violation.getTimestamp() == null ? 0 : violation.getTimestamp().getTime() / DriverStatistics.DAY_LENGTH;
+        driver.add(speed, day);
+        entries.put(key, new Entry(driver, speed, day));
+    }
+
+    // Removes a violation from its driver's statistics.
+    // Drivers without violations are removed.
+    public void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        entry.driver.remove(entry.speed, entry.day);
+        if (entry.driver.getCount() == 0) {
+            drivers.remove(entry.driver.getUserId());
+        }
+    }
+
+    public void clear() {
+        drivers.clear();
+        entries.clear();
+    }
+
+    public Collection<DriverStatistics> getDrivers() {
+        return drivers.values();
+    }
+
+    public DriverStatistics getDriver(String userId) {
+        return drivers.get(userId);
+    }
+}
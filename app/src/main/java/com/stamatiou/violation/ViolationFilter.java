@@ -0,0 +1,113 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Filter used by the application, to restrict
+// violation queries to a time window and a minimum speed.
+// Filters are pushed down to the Violation Store indexed columns, and
+// checked directly against violations received from Firebase.
+// History the store lacks is synced by the Violation Sync through Firebase
+// indexes: time windows through the time index, and all time minimum speeds
+// through the received feed's speed index, since a Firebase query orders
+// by a single child.
+// Live filters keep only violations of the last N minutes.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+public class ViolationFilter {
+
+    private Long since;
+    private Long until;
+    private Float minimumSpeed;
+    private Integer liveMinutes;
+
+    public static class Builder {
+
+        private Long since;
+        private Long until;
+        private Float minimumSpeed;
+        private Integer liveMinutes;
+
+        public Builder() {}
+
+        public Builder withSince(Long since) {
+            this.since = since;
+            return this;
+        }
+
+        public Builder withUntil(Long until) {
+            this.until = until;
+            return this;
+        }
+
+        public Builder withMinimumSpeed(Float minimumSpeed) {
+            this.minimumSpeed = minimumSpeed;
+            return this;
+        }
+
+        public Builder withLiveMinutes(Integer liveMinutes) {
+            this.liveMinutes = liveMinutes;
+            return this;
+        }
+
+        public ViolationFilter build() {
+            ViolationFilter filter = new ViolationFilter();
+            filter.since = this.since;
+            filter.until = this.until;
+            filter.minimumSpeed = this.minimumSpeed;
+            filter.liveMinutes = this.liveMinutes;
+            return filter;
+        }
+    }
+
+    private ViolationFilter() {}
+
+    public Long getSince() {
+        return since;
+    }
+
+    public Long getUntil() {
+        return until;
+    }
+
+    public Float getMinimumSpeed() {
+        return minimumSpeed;
+    }
+
+    public Integer getLiveMinutes() {
+        return liveMinutes;
+    }
+
+    public Boolean isLive() {
+        return liveMinutes != null;
+    }
+
+    // Returns the live window length in milliseconds.
+    public long getLiveWindow() {
+        return liveMinutes == null ? 0 : liveMinutes * 60000L;
+    }
+
+    // Returns the effective lower timestamp bound.
+    // For live filters, the bound is computed from the current time.
+    public Long getEffectiveSince() {
+        if (isLive()) {
+            return System.currentTimeMillis() - getLiveWindow();
+        }
+        return since;
+    }
+
+    // Checks a violation against the filter.
+    public Boolean matches(Violation violation) {
+        if (minimumSpeed != null && (violation.getSpeed() == null || violation.getSpeed() < minimumSpeed)) {
+            return false;
+        }
+        long time = violation.getTimestamp() == null ? 0 : violation.getTimestamp().getTime();
+        Long effectiveSince = getEffectiveSince();
+        if (effectiveSince != null && time < effectiveSince) {
+            return false;
+        }
+        return until == null || time <= until;
+    }
+}
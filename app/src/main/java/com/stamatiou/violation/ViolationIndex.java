@@ -0,0 +1,219 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Index used by the application, to fan out
+// violations to index nodes, so global and regional queries are
+// bounded range reads instead of walks over every user's subtree.
+// Each violation is written, in a single atomic multi-path update, to:
+//      1. violations/<uid>/<pushId>: user's violations.
+//      2. by_time/<hour>/<pushId>: violations bucketed by UTC hour (yyyyMMddHH).
+//      3. by_cell/<geohash5>/<pushId>: violations bucketed by geohash cell, roughly 5 km.
+//      4. by_received/<pushId>: received feed, with the server time the
+//      violation reached Firebase, used for global sync, so violations
+//      queued offline are synced when they arrive, whatever their age.
+//      5. hotspots/<tile>: violations counter of the violation's hotspot tile,
+//      increased on the server, without a transaction round trip.
+// Violations are removed through a single atomic update too, which leaves
+// a tombstone in the received feed, so clients syncing later, after being
+// offline during the removal, also remove the violation.
+// Index entries also contain the violation's user, while violation nodes
+// are marked as indexed, so the Violation Index Migrator never counts a
+// violation written through the fan-out again.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ServerValue;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+public class ViolationIndex {
+
+    public final static String VIOLATIONS_PATH = "violations";
+    public final static String BY_TIME_PATH = "by_time";
+    public final static String BY_CELL_PATH = "by_cell";
+    public final static String BY_RECEIVED_PATH = "by_received";
+    public final static String HOTSPOT_PATH_PREFIX = HotspotTileCache.HOTSPOTS_PATH + "/";
+    public final static String USER_CHILD = "user";
+    public final static String INDEXED_CHILD = "indexed";
+    public final static String RECEIVED_CHILD = "received";
+    public final static String DELETED_CHILD = "deleted";
+    public final static String SPEED_CHILD = "speed";
+    public final static int CELL_PRECISION = 5;
+    public final static int MAX_REGION_CELLS = 64; // Regions requiring more cells should be queried by time.
+    private final static String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private final static String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    private ViolationIndex() {}
+
+    // Writes a new violation and its index entries, in a single atomic update.
+    // Returns the violation's push key.
+    public static String write(DatabaseReference root, String userId, Violation violation) {
+        String key = root.child(VIOLATIONS_PATH).child(userId).push().getKey();
+        root.updateChildren(fanOut(userId, key, violation));
+        return key;
+    }
+
+    // Returns the multi-path update of a violation and its index entries.
+    public static Map<String, Object> fanOut(String userId, String key, Violation violation) {
+        Map<String, Object> node = values(violation);
+        node.put(INDEXED_CHILD, true);
+        Map<String, Object> entry = values(violation);
+        entry.put(USER_CHILD, userId);
+        Map<String, Object> receivedEntry = new HashMap<>(entry);
+        receivedEntry.put(RECEIVED_CHILD, ServerValue.TIMESTAMP);
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(VIOLATIONS_PATH + "/" + userId + "/" + key, node);
+        updates.put(BY_TIME_PATH + "/" + timeBucket(violation.getTimestamp().getTime()) + "/" + key, entry);
+        updates.put(BY_CELL_PATH + "/" + geohash(violation.getLatitude(), violation.getLongitude(), CELL_PRECISION) + "/" + key, entry);
+        updates.put(BY_RECEIVED_PATH + "/" + key, receivedEntry);
+        updates.put(HOTSPOT_PATH_PREFIX + HotspotTileCache.tileKey(violation), ServerValue.increment(1));
+        return updates;
+    }
+
+    // Removes a violation and its index entries, in a single atomic update.
+    public static void remove(DatabaseReference root, String userId, String key, Violation violation) {
+        root.updateChildren(removal(userId, key, violation));
+    }
+
+    // Returns the multi-path update removing a violation and its index entries,
+    // decreasing its hotspot counter and replacing its received feed entry by a tombstone.
+    public static Map<String, Object> removal(String userId, String key, Violation violation) {
+        Map<String, Object> tombstone = new HashMap<>();
+        tombstone.put(DELETED_CHILD, true);
+        tombstone.put(RECEIVED_CHILD, ServerValue.TIMESTAMP);
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(VIOLATIONS_PATH + "/" + userId + "/" + key, null);
+        updates.put(BY_TIME_PATH + "/" + timeBucket(violation.getTimestamp().getTime()) + "/" + key, null);
+        updates.put(BY_CELL_PATH + "/" + geohash(violation.getLatitude(), violation.getLongitude(), CELL_PRECISION) + "/" + key, null);
+        updates.put(BY_RECEIVED_PATH + "/" + key, tombstone);
+        updates.put(HOTSPOT_PATH_PREFIX + HotspotTileCache.tileKey(violation), ServerValue.increment(-1));
+        return updates;
+    }
+
+    private static Map<String, Object> values(Violation violation) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("latitude", violation.getLatitude());
+        values.put("longitude", violation.getLongitude());
+        values.put(SPEED_CHILD, violation.getSpeed());
+        values.put("timestamp", violation.getTimestamp());
+        return values;
+    }
+
+    // Returns the time bucket of a timestamp.
+    public static String timeBucket(long time) {
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHH", Locale.US);
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return formatter.format(new Date(time));
+    }
+
+    // Returns the time buckets query, for the given time range.
+    // Each child of the result is a bucket, containing its violations.
+    public static Query timeRange(DatabaseReference root, long since, long until) {
+        return root.child(BY_TIME_PATH).orderByKey().startAt(timeBucket(since)).endAt(timeBucket(until));
+    }
+
+    // Returns the received feed query of violations at or above a minimum speed,
+    // served by the feed's speed index.
+    public static Query speedRange(DatabaseReference root, float minimumSpeed) {
+        return root.child(BY_RECEIVED_PATH).orderByChild(SPEED_CHILD).startAt(minimumSpeed);
+    }
+
+    // Returns the cell queries covering the given region, keyed by cell,
+    // or null when the region requires too many cells.
+    public static Map<String, Query> region(DatabaseReference root, double south, double west, double north, double east) {
+        Set<String> cells = cellsCovering(south, west, north, east);
+        if (cells == null) {
+            return null;
+        }
+        Map<String, Query> queries = new LinkedHashMap<>();
+        for (String cell : cells) {
+            queries.put(cell, root.child(BY_CELL_PATH).child(cell));
+        }
+        return queries;
+    }
+
+    // Returns the geohash cells covering the given region,
+    // or null when the region requires too many cells.
+    public static Set<String> cellsCovering(double south, double west, double north, double east) {
+        double[] size = cellSize(CELL_PRECISION);
+        Set<String> cells = new LinkedHashSet<>();
+        for (double latitude = south; latitude < north + size[0]; latitude += size[0]) {
+            for (double longitude = west; longitude < east + size[1]; longitude += size[1]) {
+                cells.add(geohash(Math.min(latitude, north), Math.min(longitude, east), CELL_PRECISION));
+                if (cells.size() > MAX_REGION_CELLS) {
+                    return null;
+                }
+            }
+        }
+        return cells;
+    }
+
+    // Encodes a location as a geohash of the given precision.
+    public static String geohash(double latitude, double longitude, int precision) {
+        double[] latitudeRange = {-90, 90};
+        double[] longitudeRange = {-180, 180};
+        StringBuilder hash = new StringBuilder(precision);
+        boolean even = true;
+        int bit = 0;
+        int character = 0;
+        while (hash.length() < precision) {
+            double[] range = even ? longitudeRange : latitudeRange;
+            double value = even ? longitude : latitude;
+            double middle = (range[0] + range[1]) / 2;
+            character <<= 1;
+            if (value >= middle) {
+                character |= 1;
+                range[0] = middle;
+            } else {
+                range[1] = middle;
+            }
+            even = !even;
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(character));
+                bit = 0;
+                character = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    // Returns the push key generation time.
+    public static long pushKeyTime(String key) {
+        long time = 0;
+        for (int i = 0; i < 8; i++) {
+            time = time * 64 + PUSH_CHARS.indexOf(key.charAt(i));
+        }
+        return time;
+    }
+
+    // Returns the smallest push key generated at the given time.
+    public static String pushKey(long time) {
+        char[] chars = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            chars[i] = PUSH_CHARS.charAt((int) (time % 64));
+            time /= 64;
+        }
+        return new String(chars);
+    }
+
+    // Returns the latitude and longitude size of a geohash cell, in degrees.
+    private static double[] cellSize(int precision) {
+        int bits = precision * 5;
+        int longitudeBits = (bits + 1) / 2;
+        int latitudeBits = bits / 2;
+        return new double[]{180 / Math.pow(2, latitudeBits), 360 / Math.pow(2, longitudeBits)};
+    }
+}
@@ -0,0 +1,218 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Index Migrator, a one-time admin tool used to
+// backfill the index nodes of violations written before the fan-out
+// write path existed. It is started by an admin from the Fleet Dashboard,
+// and never runs on the startup path of the map or the dashboard.
+// A single migration runs at a time: configuration/index_migration is
+// claimed by a transaction, refreshed by each written batch, and released
+// on completion. A claim not refreshed within the lock timeout is stale,
+// so an interrupted migration can be started again.
+// Users' violations are read a page of users at a time, and the index entries
+// of violations not yet marked as indexed are written in batched multi-path
+// updates. Each batch increases the hotspot counters of its violations and
+// marks them as indexed, atomically, so counters are only ever increased:
+// violations written through the fan-out are already marked, and are never
+// counted again, while concurrent increments are preserved.
+// Backfilled violations enter the received feed with the migration's server
+// time, so global sync receives them as new.
+// Migration is idempotent, as index entries are keyed by the violation's
+// push key and marked violations are skipped.
+// On completion, configuration/index_version is set, so migration is skipped
+// when already performed.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.Transaction;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ViolationIndexMigrator {
+
+    public interface Callback {
+
+        // Invoked with the number of migrated violations.
+        void onMigrationCompleted(int violations);
+
+        void onMigrationFailed(Exception exception);
+    }
+
+    public final static String INDEX_VERSION_PATH = "configuration/index_version";
+    public final static String LOCK_PATH = "configuration/index_migration";
+    public final static int INDEX_VERSION = 2; // 1: time and cell index nodes, 2: hotspot counters and received feed.
+    public final static long LOCK_TIMEOUT = 600000L; // Claim validity without a written batch, in milliseconds.
+    private final static int USERS_PER_PAGE = 20; // Users read at a time.
+    private final static int BATCH_SIZE = 300; // Violations per multi-path update.
+
+    private final DatabaseReference root;
+    private final Callback callback;
+
+    public ViolationIndexMigrator(DatabaseReference root, Callback callback) {
+        this.root = root;
+        this.callback = callback;
+    }
+
+    // Starts migration, unless it is running elsewhere, or index version is already up to date.
+    public void migrate() {
+        root.child(LOCK_PATH).runTransaction(new Transaction.Handler() {
+            @NonNull
+            @Override
+            public Transaction.Result doTransaction(@NonNull MutableData mutableData) {
+                Long claimedAt = mutableData.getValue(Long.class);
+                long now = System.currentTimeMillis();
+                if (claimedAt != null && now - claimedAt < LOCK_TIMEOUT) {
+                    return Transaction.abort();
+                }
+                mutableData.setValue(now);
+                return Transaction.success(mutableData);
+            }
+
+            @Override
+            public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                if (databaseError != null) {
+                    callback.onMigrationFailed(databaseError.toException());
+                } else if (!committed) {
+                    callback.onMigrationFailed(new IllegalStateException("Violations index migration is already running."));
+                } else {
+                    readVersion();
+                }
+            }
+        });
+    }
+
+    private void readVersion() {
+        root.child(INDEX_VERSION_PATH).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                Long version = dataSnapshot.getValue(Long.class);
+                if (version != null && version >= INDEX_VERSION) {
+                    Log.i("message", "Violations index is up to date, migration skipped.");
+                    root.child(LOCK_PATH).setValue(null);
+                    callback.onMigrationCompleted(0);
+                } else {
+                    readUsers(null, 0);
+                }
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                failed(databaseError.toException());
+            }
+        });
+    }
+
+    // Reads the page of users after the given user, and builds the index updates batches.
+    // The last page sets the index version and releases the claim.
+    private void readUsers(final String afterUser, final int migrated) {
+        Query query = root.child(ViolationIndex.VIOLATIONS_PATH).orderByKey();
+        if (afterUser != null) {
+            query = query.startAt(afterUser);
+        }
+        query.limitToFirst(afterUser == null ? USERS_PER_PAGE : USERS_PER_PAGE + 1).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                List<Map<String, Object>> batches = new ArrayList<>();
+                Map<String, Object> batch = new HashMap<>();
+                String lastUser = null;
+                int users = 0;
+                int count = 0;
+                for (DataSnapshot user : dataSnapshot.getChildren()) {
+                    if (user.getKey().equals(afterUser)) {
+                        continue;
+                    }
+                    lastUser = user.getKey();
+                    users++;
+                    for (DataSnapshot userViolation : user.getChildren()) {
+                        if (userViolation.hasChild(ViolationIndex.INDEXED_CHILD)) {
+                            continue;
+                        }
+                        batch.putAll(indexUpdates(user.getKey(), userViolation));
+                        if (++count % BATCH_SIZE == 0) {
+                            batches.add(batch);
+                            batch = new HashMap<>();
+                        }
+                    }
+                }
+                boolean lastPage = users < USERS_PER_PAGE;
+                if (lastPage) {
+                    batch.put(INDEX_VERSION_PATH, INDEX_VERSION);
+                    batch.put(LOCK_PATH, null);
+                }
+                if (!batch.isEmpty() || batches.isEmpty()) {
+                    batches.add(batch);
+                }
+                Log.i("message", "Migrating violations index, users: " + users + ", violations: " + count + ", batches: " + batches.size());
+                writeBatch(batches, 0, lastPage ? null : lastUser, migrated + count);
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                failed(databaseError.toException());
+            }
+        });
+    }
+
+    // Returns the index entries and hotspot counter increase of a violation,
+    // along with its indexed marker.
+    // Invalid violations are only marked, so they are not read again.
+    private static Map<String, Object> indexUpdates(String userId, DataSnapshot userViolation) {
+        String path = ViolationIndex.VIOLATIONS_PATH + "/" + userId + "/" + userViolation.getKey();
+        Violation violation = userViolation.getValue(Violation.class);
+        Map<String, Object> updates;
+        if (violation == null || violation.getTimestamp() == null || violation.getLatitude() == null || violation.getLongitude() == null) {
+            updates = new HashMap<>();
+        } else {
+            updates = ViolationIndex.fanOut(userId, userViolation.getKey(), violation);
+            updates.remove(path);
+        }
+        updates.put(path + "/" + ViolationIndex.INDEXED_CHILD, true);
+        return updates;
+    }
+
+    // Writes batches sequentially, so each update stays small, refreshing the claim.
+    // Next page is read after the last batch, unless this was the last page.
+    private void writeBatch(final List<Map<String, Object>> batches, final int index, final String lastUser, final int migrated) {
+        Map<String, Object> updates = batches.get(index);
+        if (!updates.containsKey(LOCK_PATH)) {
+            updates.put(LOCK_PATH, System.currentTimeMillis());
+        }
+        root.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError, @NonNull DatabaseReference databaseReference) {
+                if (databaseError != null) {
+                    failed(databaseError.toException());
+                } else if (index < batches.size() - 1) {
+                    writeBatch(batches, index + 1, lastUser, migrated);
+                } else if (lastUser != null) {
+                    readUsers(lastUser, migrated);
+                } else {
+                    Log.i("message", "Violations index migration completed successfully.");
+                    callback.onMigrationCompleted(migrated);
+                }
+            }
+        });
+    }
+
+    // Releases the claim, so migration can be started again.
+    private void failed(Exception exception) {
+        root.child(LOCK_PATH).setValue(null);
+        callback.onMigrationFailed(exception);
+    }
+}
@@ -0,0 +1,251 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Store used by the application, to keep a
+// local copy of the synced violations, in an SQLite database.
+// For each sync cursor, a user or the global time index, the store persists:
+//      1. High water mark: last synced violation key, or last synced server
+//      time for the global cursor, so sync resumes fetching only newer violations.
+//      2. Low water mark: key before which history has not been synced yet,
+//      when initial sync was limited to recent violations.
+// Violation filters are applied on indexed columns.
+// Invalid synced violations, like index entries without a user, are skipped
+// and logged, so they never fail the rest of their batch or its high water mark.
+// Store methods block on the database, so they are called from store operations,
+// executed in submission order on the store's background thread, with their
+// results posted to the main thread. Database creation and upgrades also run there.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ViolationStore extends SQLiteOpenHelper {
+
+    // Store operation, executed on the store's background thread.
+    public interface Operation<T> {
+        T run(ViolationStore store);
+    }
+
+    // Receives the result of a store operation, on the main thread.
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    // Receives each queried violation, with its user.
+    public interface Visitor {
+        void visit(String key, String userId, Violation violation);
+    }
+
+    private final static String DATABASE_NAME = "violations.db";
+    private final static int DATABASE_VERSION = 3;
+
+    private static ViolationStore instance;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized ViolationStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ViolationStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ViolationStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    // Executes an operation on the store's background thread, and posts its result
+    // to the callback, if any, on the main thread.
+    // Operations are executed in submission order, so an operation observes
+    // the writes of all operations submitted before it.
+    public <T> void execute(final Operation<T> operation, final Callback<T> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result;
+                try {
+                    result = operation.run(ViolationStore.this);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    Log.i("message","Exception during Violation Store operation:" + e.getMessage());
+                    return;
+                }
+                if (callback != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onResult(result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE violations (key TEXT PRIMARY KEY, user TEXT NOT NULL, latitude REAL, longitude REAL, speed REAL, timestamp INTEGER)");
+        db.execSQL("CREATE INDEX violations_user ON violations (user)");
+        db.execSQL("CREATE INDEX violations_timestamp ON violations (timestamp)");
+        db.execSQL("CREATE INDEX violations_speed ON violations (speed)");
+        db.execSQL("CREATE TABLE cursors (name TEXT PRIMARY KEY, high_key TEXT, low_key TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS violations");
+        db.execSQL("DROP TABLE IF EXISTS cursors");
+        onCreate(db);
+    }
+
+    // Stores violations, with their users, and advances the cursor's high water mark, in a single transaction.
+    // A null high water mark leaves the current one unchanged.
+    // Invalid violations are skipped, while the rest of the batch is stored.
+    public void putAll(String cursorName, Map<String, Violation> violations, Map<String, String> users, String highWaterMark) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Map.Entry<String, Violation> entry : violations.entrySet()) {
+                Violation violation = entry.getValue();
+                if (violation == null || users.get(entry.getKey()) == null) {
+                    Log.i("message","Invalid violation skipped: " + entry.getKey());
+                    continue;
+                }
+                values.clear();
+                values.put("key", entry.getKey());
+                values.put("user", users.get(entry.getKey()));
+                values.put("latitude", violation.getLatitude());
+                values.put("longitude", violation.getLongitude());
+                values.put("speed", violation.getSpeed());
+                values.put("timestamp", violation.getTimestamp() == null ? null : violation.getTimestamp().getTime());
+                try {
+                    db.insertWithOnConflict("violations", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                } catch (SQLException e) {
+                    Log.i("message","Invalid violation skipped: " + entry.getKey() + ", error: " + e.getMessage());
+                }
+            }
+            if (highWaterMark != null) {
+                values.clear();
+                values.put("high_key", highWaterMark);
+                if (db.update("cursors", values, "name = ?", new String[]{cursorName}) == 0) {
+                    values.put("name", cursorName);
+                    db.insert("cursors", null, values);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void remove(String key) {
+        getWritableDatabase().delete("violations", "key = ?", new String[]{key});
+    }
+
+    public String getHighWaterMark(String cursorName) {
+        return getCursor(cursorName, "high_key");
+    }
+
+    public String getLowWaterMark(String cursorName) {
+        return getCursor(cursorName, "low_key");
+    }
+
+    // Sets the cursor's low water mark. A null value marks the cursor's history as completely synced.
+    public void setLowWaterMark(String cursorName, String lowWaterMark) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("low_key", lowWaterMark);
+        if (db.update("cursors", values, "name = ?", new String[]{cursorName}) == 0) {
+            values.put("name", cursorName);
+            db.insert("cursors", null, values);
+        }
+    }
+
+    // Checks if the cursor's history has not been completely synced.
+    public Boolean isPartiallySynced(String cursorName) {
+        return getLowWaterMark(cursorName) != null;
+    }
+
+    // Returns stored violations matching the filter, ordered by key.
+    // Both filter and user are optional.
+    public Map<String, Violation> query(ViolationFilter filter, String userId) {
+        final Map<String, Violation> violations = new LinkedHashMap<>();
+        forEach(filter, userId, new Visitor() {
+            @Override
+            public void visit(String key, String user, Violation violation) {
+                violations.put(key, violation);
+            }
+        });
+        return violations;
+    }
+
+    // Visits stored violations matching the filter, with their users, ordered by key,
+    // using a single query. Both filter and user are optional.
+    public void forEach(ViolationFilter filter, String userId, Visitor visitor) {
+        StringBuilder selection = new StringBuilder("1 = 1");
+        List<String> arguments = new ArrayList<>();
+        if (userId != null) {
+            selection.append(" AND user = ?");
+            arguments.add(userId);
+        }
+        if (filter != null) {
+            Long since = filter.getEffectiveSince();
+            if (since != null) {
+                selection.append(" AND timestamp >= ?");
+                arguments.add(String.valueOf(since));
+            }
+            if (filter.getUntil() != null) {
+                selection.append(" AND timestamp <= ?");
+                arguments.add(String.valueOf(filter.getUntil()));
+            }
+            if (filter.getMinimumSpeed() != null) {
+                selection.append(" AND speed >= ?");
+                arguments.add(String.valueOf(filter.getMinimumSpeed()));
+            }
+        }
+        Cursor cursor = getReadableDatabase().query("violations", new String[]{"key", "user", "latitude", "longitude", "speed", "timestamp"},
+                                                    selection.toString(), arguments.toArray(new String[0]), null, null, "key");
+        try {
+            while (cursor.moveToNext()) {
+                visitor.visit(cursor.getString(0), cursor.getString(1), new Violation.Builder()
+                                                                                     .withLatitude(cursor.getDouble(2))
+                                                                                     .withLongitude(cursor.getDouble(3))
+                                                                                     .withSpeed(cursor.getFloat(4))
+                                                                                     .withTimestamp(new Date(cursor.getLong(5)))
+                                                                                     .build());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String getCursor(String cursorName, String column) {
+        Cursor cursor = getReadableDatabase().query("cursors", new String[]{column}, "name = ?", new String[]{cursorName}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,511 @@
+// -------------------------------------------------------------
+//
+// This is the Violation Sync used by the application, to keep the
+// Violation Store up to date with Firebase using delta sync.
+// Only violations newer than the sync cursor's high water mark are fetched.
+// Two sync modes exist:
+//      1. User: user's violations subtree is synced, using a key ordered
+//      startAt query. Firebase push keys are chronological, so the last
+//      received key is the high water mark. Removals are received while
+//      listening only, as users' subtrees keep no tombstones.
+//      2. Global: violations of all users are synced through the received
+//      feed, ordered by the server time each violation reached Firebase.
+//      Violations queued offline reach Firebase late, with older push keys,
+//      but with a current server time, so the last received server time is
+//      the high water mark, and late writes are never missed, without
+//      re-reading elapsed history. Removed violations leave a tombstone in
+//      the feed, so removals made while offline are synced too.
+// When full history sync is not allowed, initial sync starts from the
+// deferred history window, and older history is synced later by the
+// backfill, through the time index, when it becomes allowed. Meanwhile,
+// history is synced on demand: presented regions through the cell index,
+// and filtered history through the time index, or the speed index of the
+// received feed, so filters are pushed down to Firebase.
+// Received violations are written to the store in batches, and cursors are
+// read and written, through store operations, off the main thread.
+//
+// Author: Aggelos Stamatiou, July 2020
+//
+// --------------------------------------------------------------
+
+package com.stamatiou.violation;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ViolationSync {
+
+    public interface Listener {
+
+        // Invoked for each new or changed violation, with its user.
+        void onViolationSynced(String key, String userId, Violation violation);
+
+        void onViolationRemoved(String key);
+
+        // Invoked when older history has been synced into the store.
+        void onHistorySynced();
+    }
+
+    public final static String GLOBAL_CURSOR = "global";
+    public final static long DEFERRED_HISTORY_WINDOW = 86400000L; // Synced history while full sync is not allowed, in milliseconds.
+    private final static long FLUSH_DELAY = 250; // Store writes batching delay, in milliseconds.
+
+    private final ViolationStore store;
+    private final Listener listener;
+    private final String userId;
+    private final String cursor;
+    private final DatabaseReference root;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Violation> pendingWrites = new LinkedHashMap<>();
+    private final Map<String, String> pendingUsers = new HashMap<>();
+    private final Set<String> syncedCells = new HashSet<>();
+    private Float syncedMinimumSpeed; // Lowest minimum speed synced through the speed index.
+    private String highWaterMark;
+    private Query liveQuery;
+    private ChildEventListener liveListener;
+    private boolean backfillPending;
+    private boolean rangePending;
+    private boolean flushScheduled;
+    private int generation; // Increased on each stop, so pending starts are dropped.
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // A null user syncs all users, through the time index.
+    public ViolationSync(ViolationStore store, String userId, Listener listener) {
+        this.store = store;
+        this.userId = userId;
+        this.cursor = userId != null ? userId : GLOBAL_CURSOR;
+        this.listener = listener;
+        this.root = FirebaseDatabase.getInstance().getReference();
+    }
+
+    // Starts syncing, from the cursor's high water mark.
+    // In global mode, the high water mark is a server time, and the initial
+    // deferred sync starts from the server time of the deferred history window.
+    public void start(final boolean fullHistoryAllowed) {
+        stop();
+        final int startGeneration = generation;
+        store.execute(new ViolationStore.Operation<String>() {
+            @Override
+            public String run(ViolationStore store) {
+                String highWaterMark = store.getHighWaterMark(cursor);
+                if (highWaterMark != null) {
+                    return highWaterMark;
+                } else if (!fullHistoryAllowed) {
+                    long startTime = System.currentTimeMillis() - DEFERRED_HISTORY_WINDOW;
+                    store.setLowWaterMark(cursor, ViolationIndex.pushKey(startTime));
+                    return userId != null ? ViolationIndex.pushKey(startTime) : String.valueOf(startTime);
+                }
+                store.setLowWaterMark(cursor, null);
+                return null;
+            }
+        }, new ViolationStore.Callback<String>() {
+            @Override
+            public void onResult(String startMark) {
+                if (startGeneration == generation) {
+                    listen(startMark);
+                }
+            }
+        });
+    }
+
+    // Stops syncing and writes pending violations to the store.
+    public void stop() {
+        generation++;
+        if (liveListener != null) {
+            liveQuery.removeEventListener(liveListener);
+            liveListener = null;
+        }
+        flush();
+    }
+
+    // Syncs the history older than the cursor's low water mark.
+    // In global mode, hour buckets up to the low water mark's bucket are read.
+    public void backfill() {
+        if (backfillPending) {
+            return;
+        }
+        backfillPending = true;
+        store.execute(new ViolationStore.Operation<String>() {
+            @Override
+            public String run(ViolationStore store) {
+                return store.getLowWaterMark(cursor);
+            }
+        }, new ViolationStore.Callback<String>() {
+            @Override
+            public void onResult(String lowWaterMark) {
+                if (lowWaterMark == null) {
+                    backfillPending = false;
+                } else {
+                    backfill(lowWaterMark);
+                }
+            }
+        });
+    }
+
+    // Syncs the violations of a region through the cell index, while global history
+    // older than the low water mark has not been synced yet. Each cell is read once.
+    public void syncRegion(final double south, final double west, final double north, final double east) {
+        if (userId != null) {
+            return;
+        }
+        store.execute(new ViolationStore.Operation<String>() {
+            @Override
+            public String run(ViolationStore store) {
+                return store.getLowWaterMark(cursor);
+            }
+        }, new ViolationStore.Callback<String>() {
+            @Override
+            public void onResult(String lowWaterMark) {
+                Map<String, Query> cells = ViolationIndex.region(root, south, west, north, east);
+                if (lowWaterMark == null || cells == null) {
+                    return;
+                }
+                for (Map.Entry<String, Query> cell : cells.entrySet()) {
+                    if (syncedCells.add(cell.getKey())) {
+                        readCell(cell.getKey(), cell.getValue());
+                    }
+                }
+            }
+        });
+    }
+
+    // Syncs the global history a filter requires, when older than the low water mark.
+    // Time windows are read through the time index, moving the low water mark back
+    // to the window's start. All time filters with a minimum speed are read through
+    // the speed index of the received feed, without moving the low water mark.
+    // All time filters without a minimum speed require the full history, synced by the backfill.
+    // Listener is informed when history has been synced.
+    public void syncFilter(final ViolationFilter filter) {
+        if (userId != null || rangePending) {
+            return;
+        }
+        rangePending = true;
+        store.execute(new ViolationStore.Operation<String>() {
+            @Override
+            public String run(ViolationStore store) {
+                return store.getLowWaterMark(cursor);
+            }
+        }, new ViolationStore.Callback<String>() {
+            @Override
+            public void onResult(String lowWaterMark) {
+                Long since = filter.getEffectiveSince();
+                Float minimumSpeed = filter.getMinimumSpeed();
+                if (lowWaterMark != null && since != null && since < ViolationIndex.pushKeyTime(lowWaterMark)) {
+                    readTimeRange(since, lowWaterMark);
+                } else if (lowWaterMark != null && since == null && minimumSpeed != null
+                           && (syncedMinimumSpeed == null || minimumSpeed < syncedMinimumSpeed)) {
+                    readSpeedRange(minimumSpeed);
+                } else {
+                    rangePending = false;
+                }
+            }
+        });
+    }
+
+    // Writes pending violations to the store, advancing the cursor's high water mark.
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        final Map<String, Violation> violations = new LinkedHashMap<>(pendingWrites);
+        final Map<String, String> users = new HashMap<>(pendingUsers);
+        final String flushedHighWaterMark = highWaterMark;
+        pendingWrites.clear();
+        pendingUsers.clear();
+        store.execute(new ViolationStore.Operation<Void>() {
+            @Override
+            public Void run(ViolationStore store) {
+                store.putAll(cursor, violations, users, flushedHighWaterMark);
+                return null;
+            }
+        }, null);
+    }
+
+    // Listens to violations from the start mark, a push key in user mode,
+    // or a server time in global mode. Violations at the start mark itself
+    // are received again, without effect.
+    private void listen(final String startMark) {
+        if (userId != null) {
+            liveQuery = root.child(ViolationIndex.VIOLATIONS_PATH).child(userId).orderByKey();
+            if (startMark != null) {
+                liveQuery = liveQuery.startAt(startMark);
+            }
+        } else {
+            liveQuery = root.child(ViolationIndex.BY_RECEIVED_PATH).orderByChild(ViolationIndex.RECEIVED_CHILD);
+            if (startMark != null) {
+                liveQuery = liveQuery.startAt(Long.parseLong(startMark));
+            }
+        }
+        liveListener = liveQuery.addChildEventListener(new ChildEventListener() {
+            @Override
+            public void onChildAdded(@NonNull DataSnapshot dataSnapshot, String previousChildName) {
+                received(dataSnapshot);
+            }
+
+            @Override
+            public void onChildChanged(@NonNull DataSnapshot dataSnapshot, String previousChildName) {
+                received(dataSnapshot);
+            }
+
+            @Override
+            public void onChildRemoved(@NonNull DataSnapshot dataSnapshot) {
+                removed(dataSnapshot.getKey());
+            }
+
+            @Override
+            public void onChildMoved(@NonNull DataSnapshot dataSnapshot, String previousChildName) {}
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                Log.i("message", "Failed to sync violations. Error: " + databaseError.toException());
+            }
+        });
+    }
+
+    // Reads a cell's violations, without advancing the high water mark.
+    private void readCell(final String cell, Query query) {
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    Violation violation = child.getValue(Violation.class);
+                    if (violation != null) {
+                        String user = userOf(child);
+                        pendingWrites.put(child.getKey(), violation);
+                        pendingUsers.put(child.getKey(), user);
+                        listener.onViolationSynced(child.getKey(), user, violation);
+                    }
+                }
+                scheduleFlush();
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                syncedCells.remove(cell);
+                Log.i("message", "Failed to sync region violations. Error: " + databaseError.toException());
+            }
+        });
+    }
+
+    // Reads the time index buckets from the given time to the low water mark,
+    // and writes their violations to the store, moving the low water mark back.
+    private void readTimeRange(final long since, final String lowWaterMark) {
+        ViolationIndex.timeRange(root, since, ViolationIndex.pushKeyTime(lowWaterMark)).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                final Map<String, Violation> violations = new LinkedHashMap<>();
+                final Map<String, String> users = new HashMap<>();
+                for (DataSnapshot bucket : dataSnapshot.getChildren()) {
+                    for (DataSnapshot child : bucket.getChildren()) {
+                        Violation violation = child.getValue(Violation.class);
+                        if (violation != null && child.getKey().compareTo(lowWaterMark) < 0) {
+                            violations.put(child.getKey(), violation);
+                            users.put(child.getKey(), userOf(child));
+                        }
+                    }
+                }
+                final String rangeLowWaterMark = ViolationIndex.pushKey(since);
+                store.execute(new ViolationStore.Operation<Void>() {
+                    @Override
+                    public Void run(ViolationStore store) {
+                        store.putAll(cursor, violations, users, null);
+                        String currentLowWaterMark = store.getLowWaterMark(cursor);
+                        if (currentLowWaterMark != null && rangeLowWaterMark.compareTo(currentLowWaterMark) < 0) {
+                            store.setLowWaterMark(cursor, rangeLowWaterMark);
+                        }
+                        return null;
+                    }
+                }, new ViolationStore.Callback<Void>() {
+                    @Override
+                    public void onResult(Void result) {
+                        rangePending = false;
+                        Log.i("message", "Violations time range synced, violations: " + violations.size());
+                        listener.onHistorySynced();
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                rangePending = false;
+                Log.i("message", "Failed to sync violations time range. Error: " + databaseError.toException());
+            }
+        });
+    }
+
+    // Reads the received feed violations at or above the minimum speed, and writes them to the store.
+    private void readSpeedRange(final float minimumSpeed) {
+        ViolationIndex.speedRange(root, minimumSpeed).addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                final Map<String, Violation> violations = new LinkedHashMap<>();
+                final Map<String, String> users = new HashMap<>();
+                for (DataSnapshot child : dataSnapshot.getChildren()) {
+                    Violation violation = child.getValue(Violation.class);
+                    if (violation != null && !child.hasChild(ViolationIndex.DELETED_CHILD)) {
+                        violations.put(child.getKey(), violation);
+                        users.put(child.getKey(), userOf(child));
+                    }
+                }
+                store.execute(new ViolationStore.Operation<Void>() {
+                    @Override
+                    public Void run(ViolationStore store) {
+                        store.putAll(cursor, violations, users, null);
+                        return null;
+                    }
+                }, new ViolationStore.Callback<Void>() {
+                    @Override
+                    public void onResult(Void result) {
+                        rangePending = false;
+                        syncedMinimumSpeed = minimumSpeed;
+                        Log.i("message", "Violations speed range synced, violations: " + violations.size());
+                        listener.onHistorySynced();
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                rangePending = false;
+                Log.i("message", "Failed to sync violations speed range. Error: " + databaseError.toException());
+            }
+        });
+    }
+
+    // Reads the history older than the low water mark, and writes it to the store.
+    private void backfill(final String lowWaterMark) {
+        Query query;
+        if (userId != null) {
+            query = root.child(ViolationIndex.VIOLATIONS_PATH).child(userId).orderByKey().endAt(lowWaterMark);
+        } else {
+            query = root.child(ViolationIndex.BY_TIME_PATH).orderByKey().endAt(ViolationIndex.timeBucket(ViolationIndex.pushKeyTime(lowWaterMark)));
+        }
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(@NonNull DataSnapshot dataSnapshot) {
+                final Map<String, Violation> violations = new LinkedHashMap<>();
+                final Map<String, String> users = new HashMap<>();
+                for (DataSnapshot bucket : userId != null ? Collections.singletonList(dataSnapshot) : dataSnapshot.getChildren()) {
+                    for (DataSnapshot child : bucket.getChildren()) {
+                        Violation violation = child.getValue(Violation.class);
+                        if (violation != null && child.getKey().compareTo(lowWaterMark) < 0) {
+                            violations.put(child.getKey(), violation);
+                            users.put(child.getKey(), userOf(child));
+                        }
+                    }
+                }
+                store.execute(new ViolationStore.Operation<Void>() {
+                    @Override
+                    public Void run(ViolationStore store) {
+                        store.putAll(cursor, violations, users, null);
+                        store.setLowWaterMark(cursor, null);
+                        return null;
+                    }
+                }, new ViolationStore.Callback<Void>() {
+                    @Override
+                    public void onResult(Void result) {
+                        backfillPending = false;
+                        Log.i("message", "Violations history synced, violations: " + violations.size());
+                        listener.onHistorySynced();
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(@NonNull DatabaseError databaseError) {
+                backfillPending = false;
+                Log.i("message", "Failed to sync violations history. Error: " + databaseError.toException());
+            }
+        });
+    }
+
+    // Queues a received violation for writing and notifies the listener.
+    // Received tombstones remove their violation.
+    private void received(DataSnapshot dataSnapshot) {
+        if (dataSnapshot.hasChild(ViolationIndex.DELETED_CHILD)) {
+            advanceHighWaterMark(dataSnapshot);
+            removed(dataSnapshot.getKey());
+            return;
+        }
+        Violation violation = dataSnapshot.getValue(Violation.class);
+        if (violation == null) {
+            return;
+        }
+        pendingWrites.put(dataSnapshot.getKey(), violation);
+        String user = userOf(dataSnapshot);
+        pendingUsers.put(dataSnapshot.getKey(), user);
+        advanceHighWaterMark(dataSnapshot);
+        scheduleFlush();
+        listener.onViolationSynced(dataSnapshot.getKey(), user, violation);
+    }
+
+    // Removes a violation from the pending writes and the store, and notifies the listener.
+    private void removed(final String key) {
+        pendingWrites.remove(key);
+        pendingUsers.remove(key);
+        store.execute(new ViolationStore.Operation<Void>() {
+            @Override
+            public Void run(ViolationStore store) {
+                store.remove(key);
+                return null;
+            }
+        }, null);
+        listener.onViolationRemoved(key);
+    }
+
+    // Advances the high water mark to a received violation's push key, in user mode,
+    // or its received server time, in global mode.
+    private void advanceHighWaterMark(DataSnapshot dataSnapshot) {
+        if (userId != null) {
+            if (highWaterMark == null || dataSnapshot.getKey().compareTo(highWaterMark) > 0) {
+                highWaterMark = dataSnapshot.getKey();
+            }
+            return;
+        }
+        Long received = dataSnapshot.child(ViolationIndex.RECEIVED_CHILD).getValue(Long.class);
+        if (received != null && (highWaterMark == null || received > Long.parseLong(highWaterMark))) {
+            highWaterMark = String.valueOf(received);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, FLUSH_DELAY);
+        }
+    }
+
+    // Returns the user of a received violation.
+    // Index entries contain their user, while subtree entries belong to the synced user.
+    private String userOf(DataSnapshot dataSnapshot) {
+        if (userId != null) {
+            return userId;
+        }
+        return dataSnapshot.child(ViolationIndex.USER_CHILD).getValue(String.class);
+    }
+}
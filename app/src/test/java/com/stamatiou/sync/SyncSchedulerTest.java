@@ -0,0 +1,213 @@
+package com.stamatiou.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sync Scheduler unit tests, using a fake connectivity source and a manual delayer.
+ */
+public class SyncSchedulerTest {
+
+    private static class FakeConnectivitySource implements ConnectivitySource {
+
+        Listener listener;
+        boolean connected = true;
+        boolean metered = false;
+        boolean charging = false;
+
+        void change(boolean connected, boolean metered, boolean charging) {
+            this.connected = connected;
+            this.metered = metered;
+            this.charging = charging;
+            listener.onConnectivityChanged();
+        }
+
+        @Override
+        public void register(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void unregister() {
+            listener = null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isMetered() {
+            return metered;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+    }
+
+    private static class ManualDelayer implements SyncScheduler.Delayer {
+
+        List<Runnable> pending = new ArrayList<>();
+        List<Long> delays = new ArrayList<>();
+
+        // Runs only the pending runnables posted with the given delay.
+        void runDelayed(long delay) {
+            List<Runnable> runnables = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if (delays.get(i) == delay) {
+                    runnables.add(pending.get(i));
+                }
+            }
+            for (Runnable runnable : runnables) {
+                cancel(runnable);
+            }
+            for (Runnable runnable : runnables) {
+                runnable.run();
+            }
+        }
+
+        void runPending() {
+            List<Runnable> runnables = new ArrayList<>(pending);
+            pending.clear();
+            delays.clear();
+            for (Runnable runnable : runnables) {
+                runnable.run();
+            }
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delay) {
+            pending.add(runnable);
+            delays.add(delay);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            int index = pending.indexOf(runnable);
+            if (index >= 0) {
+                pending.remove(index);
+                delays.remove(index);
+            }
+        }
+    }
+
+    private static class CountingTask implements SyncScheduler.SyncTask {
+
+        int syncs;
+        int offlines;
+
+        @Override
+        public void onSync() {
+            syncs++;
+        }
+
+        @Override
+        public void onOffline() {
+            offlines++;
+        }
+    }
+
+    private FakeConnectivitySource source;
+    private ManualDelayer delayer;
+    private SyncScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        source = new FakeConnectivitySource();
+        delayer = new ManualDelayer();
+        scheduler = new SyncScheduler(source, delayer);
+    }
+
+    @Test
+    public void register_syncsImmediatelyWhenOnline() {
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.ANY_NETWORK);
+        assertEquals(1, task.syncs);
+        assertEquals(0, task.offlines);
+    }
+
+    @Test
+    public void register_reportsOfflineWhenDisconnected() {
+        source.connected = false;
+        scheduler = new SyncScheduler(source, delayer);
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.ANY_NETWORK);
+        assertEquals(0, task.syncs);
+        assertEquals(1, task.offlines);
+    }
+
+    @Test
+    public void reconnectStorm_isCoalescedIntoSingleSync() {
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.ANY_NETWORK);
+        source.change(false, false, false);
+        delayer.runPending();
+        for (int i = 0; i < 10; i++) {
+            source.change(true, false, false);
+            source.change(false, false, false);
+        }
+        source.change(true, false, false);
+        assertEquals(2, delayer.pending.size()); // Evaluation and storm deadline.
+        delayer.runPending();
+        assertEquals(2, task.syncs);
+        assertEquals(1, task.offlines);
+    }
+
+    @Test
+    public void unsettledStorm_isEvaluatedOnDeadline() {
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.ANY_NETWORK);
+        source.change(false, false, false);
+        delayer.runPending();
+        source.change(true, false, false);
+        source.change(true, true, false);
+        delayer.runDelayed(SyncScheduler.MAX_COALESCE_DELAY);
+        assertEquals(2, task.syncs);
+        assertTrue(delayer.pending.isEmpty());
+    }
+
+    @Test
+    public void networkSwitch_withoutGoingOffline_doesNotResync() {
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.ANY_NETWORK);
+        source.change(true, true, false);
+        delayer.runPending();
+        assertEquals(1, task.syncs);
+    }
+
+    @Test
+    public void bulkTask_isDeferredUntilUnmeteredOrCharging() {
+        source.metered = true;
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.UNMETERED_OR_CHARGING);
+        assertEquals(0, task.syncs);
+        assertFalse(scheduler.isBulkAllowed());
+        source.change(true, true, true);
+        delayer.runPending();
+        assertEquals(1, task.syncs);
+        source.change(true, false, false);
+        delayer.runPending();
+        assertEquals(1, task.syncs);
+    }
+
+    @Test
+    public void unregisteredTask_isNotSynced() {
+        CountingTask task = new CountingTask();
+        scheduler.register(task, SyncScheduler.Constraint.ANY_NETWORK);
+        scheduler.unregister(task);
+        source.change(false, false, false);
+        delayer.runPending();
+        source.change(true, false, false);
+        delayer.runPending();
+        assertEquals(1, task.syncs);
+        assertEquals(0, task.offlines);
+    }
+}
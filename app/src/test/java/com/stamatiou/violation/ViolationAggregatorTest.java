@@ -0,0 +1,108 @@
+package com.stamatiou.violation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * Violation Aggregator unit tests, using violations of fixed days.
+ */
+public class ViolationAggregatorTest {
+
+    private final static long NOW = 100 * DriverStatistics.DAY_LENGTH + 3600000L;
+
+    private ViolationAggregator aggregator;
+
+    private static Violation violation(float speed, int daysAgo) {
+        return new Violation.Builder()
+                            .withLatitude(37.98)
+                            .withLongitude(23.72)
+                            .withSpeed(speed)
+                            .withTimestamp(new Date(NOW - daysAgo * DriverStatistics.DAY_LENGTH))
+                            .build();
+    }
+
+    @Before
+    public void setUp() {
+        aggregator = new ViolationAggregator();
+    }
+
+    @Test
+    public void add_updatesDriverCountersAndTrend() {
+        aggregator.add("a", "user1", violation(95f, 0));
+        aggregator.add("b", "user1", violation(132f, 2));
+        aggregator.add("c", "user1", violation(101f, 10));
+        aggregator.add("d", "user2", violation(88f, 0));
+        DriverStatistics driver = aggregator.getDriver("user1");
+        assertEquals(3, driver.getCount());
+        assertEquals(132f, driver.getWorstSpeed(), 0.01f);
+        assertArrayEquals(new int[]{0, 0, 0, 0, 1, 0, 1}, driver.getTrend(NOW));
+        assertEquals(2, driver.getWeekCount(NOW));
+        assertEquals(2, aggregator.getDrivers().size());
+    }
+
+    @Test
+    public void add_replacesChangedViolation() {
+        aggregator.add("a", "user1", violation(95f, 0));
+        aggregator.add("a", "user1", violation(120f, 1));
+        DriverStatistics driver = aggregator.getDriver("user1");
+        assertEquals(1, driver.getCount());
+        assertEquals(120f, driver.getWorstSpeed(), 0.01f);
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 1, 0}, driver.getTrend(NOW));
+    }
+
+    @Test
+    public void remove_fallsBackToExactWorstSpeed() {
+        aggregator.add("a", "user1", violation(95f, 0));
+        aggregator.add("b", "user1", violation(132f, 0));
+        aggregator.remove("b");
+        DriverStatistics driver = aggregator.getDriver("user1");
+        assertEquals(1, driver.getCount());
+        assertEquals(95f, driver.getWorstSpeed(), 0.01f);
+        assertEquals(1, driver.getWeekCount(NOW));
+    }
+
+    @Test
+    public void remove_keepsExactWorstSpeedOfSameBucket() {
+        aggregator.add("a", "user1", violation(95f, 0));
+        aggregator.add("b", "user1", violation(132f, 0));
+        aggregator.remove("b");
+        aggregator.add("c", "user1", violation(91f, 0));
+        assertEquals(95f, aggregator.getDriver("user1").getWorstSpeed(), 0.01f);
+        aggregator.remove("a");
+        assertEquals(91f, aggregator.getDriver("user1").getWorstSpeed(), 0.01f);
+    }
+
+    @Test
+    public void remove_keepsWorstSpeedOfRemainingEqualRoundedSpeed() {
+        aggregator.add("a", "user1", violation(95.01f, 0));
+        aggregator.add("b", "user1", violation(95.04f, 0));
+        aggregator.add("c", "user1", violation(91f, 0));
+        aggregator.remove("b");
+        assertEquals(95f, aggregator.getDriver("user1").getWorstSpeed(), 0.01f);
+        aggregator.remove("a");
+        assertEquals(91f, aggregator.getDriver("user1").getWorstSpeed(), 0.01f);
+    }
+
+    @Test
+    public void remove_dropsDriverWithoutViolations() {
+        aggregator.add("a", "user1", violation(95f, 0));
+        aggregator.remove("a");
+        aggregator.remove("a");
+        assertNull(aggregator.getDriver("user1"));
+        assertTrue(aggregator.getDrivers().isEmpty());
+    }
+
+    @Test
+    public void trend_expiresOldDaysAndReusesSlots() {
+        aggregator.add("a", "user1", violation(95f, 7));
+        aggregator.add("b", "user1", violation(95f, 0));
+        DriverStatistics driver = aggregator.getDriver("user1");
+        assertEquals(2, driver.getCount());
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 0, 1}, driver.getTrend(NOW));
+        assertEquals(0, driver.getWeekCount(NOW + 7 * DriverStatistics.DAY_LENGTH));
+    }
+}
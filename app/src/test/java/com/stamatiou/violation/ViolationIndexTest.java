@@ -0,0 +1,39 @@
+package com.stamatiou.violation;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Violation Index keys unit tests.
+ */
+public class ViolationIndexTest {
+
+    @Test
+    public void geohashMatchesReferenceEncoding() {
+        assertEquals("u4pruydqqvj", ViolationIndex.geohash(57.64911, 10.40744, 11));
+        assertEquals("u4pru", ViolationIndex.geohash(57.64911, 10.40744, ViolationIndex.CELL_PRECISION));
+    }
+
+    @Test
+    public void timeBucketIsUtcHour() {
+        assertEquals("2020070110", ViolationIndex.timeBucket(1593598500000L));
+    }
+
+    @Test
+    public void pushKeyTimeRoundTrips() {
+        String key = ViolationIndex.pushKey(1593598500000L);
+        assertEquals(1593598500000L, ViolationIndex.pushKeyTime(key));
+        assertTrue(key.compareTo(ViolationIndex.pushKey(1593598500001L)) < 0);
+    }
+
+    @Test
+    public void regionCellsContainInnerLocation() {
+        Set<String> cells = ViolationIndex.cellsCovering(37.9, 23.6, 38.1, 23.8);
+        assertNotNull(cells);
+        assertTrue(cells.contains(ViolationIndex.geohash(37.9838, 23.7275, ViolationIndex.CELL_PRECISION)));
+        assertNull(ViolationIndex.cellsCovering(30, 10, 45, 30));
+    }
+}
@@ -0,0 +1,48 @@
+#!/bin/sh
+# -------------------------------------------------------------
+#
+# Cold start benchmark.
+# Application is force stopped and launched repeatedly on the connected device.
+# For each run, activity launch time reported by the activity manager and
+# startup milestones reported by StartupTrace are collected.
+# Signed in users reach the Speedometer, so first_speed_reading is reported,
+# when the device receives location fixes (e.g. emulator with a GPS route).
+#
+# Usage: benchmark/cold_start.sh [runs]
+#
+# Author: Aggelos Stamatiou, July 2020
+#
+# --------------------------------------------------------------
+
+PACKAGE=com.stamatiou.speedometer
+ACTIVITY=$PACKAGE/.LoginActivity
+RUNS=${1:-10}
+MILESTONE_TIMEOUT=30
+
+launch_times=""
+first_reading_times=""
+run=1
+while [ "$run" -le "$RUNS" ]; do
+    adb shell am force-stop $PACKAGE
+    adb logcat -c
+    launch=$(adb shell am start -W -n $ACTIVITY | tr -d '\r' | awk '/TotalTime/ {print $2}')
+    first_reading=""
+    waited=0
+    while [ -z "$first_reading" ] && [ "$waited" -lt "$MILESTONE_TIMEOUT" ]; do
+        sleep 1
+        waited=$((waited + 1))
+        first_reading=$(adb logcat -d -s StartupTrace:I | tr -d '\r' | awk '/first_speed_reading/ {print $(NF-1)}' | head -n 1)
+    done
+    echo "Run $run: launch ${launch} ms, first speed reading ${first_reading:-n/a} ms"
+    launch_times="$launch_times $launch"
+    first_reading_times="$first_reading_times $first_reading"
+    run=$((run + 1))
+done
+adb shell am force-stop $PACKAGE
+
+median() {
+    echo "$@" | tr ' ' '\n' | grep -v '^$' | sort -n | awk '{a[NR]=$1} END {if (NR == 0) print "n/a"; else if (NR % 2) print a[(NR + 1) / 2]; else print (a[NR / 2] + a[NR / 2 + 1]) / 2}'
+}
+
+echo "Median launch: $(median $launch_times) ms"
+echo "Median first speed reading: $(median $first_reading_times) ms"
@@ -0,0 +1,22 @@
+#!/bin/sh
+# -------------------------------------------------------------
+#
+# Release size benchmark.
+# Debug and release APKs are assembled and their sizes are reported,
+# along with the dex size, to track the effect of R8 shrinking.
+#
+# Usage: benchmark/release_size.sh
+#
+# Author: Aggelos Stamatiou, July 2020
+#
+# --------------------------------------------------------------
+
+cd "$(dirname "$0")/.." || exit 1
+./gradlew -q assembleDebug assembleRelease || exit 1
+
+for apk in app/build/outputs/apk/debug/*.apk app/build/outputs/apk/release/*.apk; do
+    [ -f "$apk" ] || continue
+    size=$(wc -c < "$apk")
+    dex=$(unzip -l "$apk" 'classes*.dex' | tail -n 1 | awk '{print $1}')
+    echo "$apk: apk ${size} bytes, dex ${dex} bytes"
+done
@@ -0,0 +1,19 @@
+#!/bin/sh
+# -------------------------------------------------------------
+#
+# Release smoke test.
+# Instrumented ReleaseSmokeTest runs against the minified release build,
+# signed with the debug key, to verify that Firebase model mapping
+# survives R8 full mode.
+# Firebase Database emulator must be running:
+# firebase emulators:start --only database --config firebase.emulator.json
+#
+# Usage: benchmark/release_smoke.sh
+#
+# Author: Aggelos Stamatiou, July 2020
+#
+# --------------------------------------------------------------
+
+cd "$(dirname "$0")/.." || exit 1
+./gradlew -q connectedAndroidTest -PtestBuildType=release \
+    -Pandroid.testInstrumentationRunnerArguments.class=com.stamatiou.violation.ReleaseSmokeTest